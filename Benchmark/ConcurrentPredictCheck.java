@@ -0,0 +1,162 @@
+package net.librec.recommender;
+
+import net.librec.conf.Configuration;
+import net.librec.data.DataModel;
+import net.librec.data.model.TextDataModel;
+import net.librec.math.algorithm.Randoms;
+import net.librec.similarity.RecommenderSimilarity;
+import net.librec.util.DriverClassUtil;
+import net.librec.util.ReflectionUtil;
+
+import java.io.FileInputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stress check of concurrent predict calls, run like RecommenderBenchmark with
+ * its properties file (conf/benchmark.properties by default) and the same
+ * synthetic data.
+ * <p>
+ * For every class in check.recommenders a fresh instance is trained, then
+ * check.predictions random (user, item) pairs are predicted on one thread.
+ * After that check.threads threads, released at the same time, predict all
+ * pairs again check.rounds times, each starting at a different pair, and
+ * every result must equal the single-threaded one exactly. The check exits
+ * with status 1 on any difference or exception.
+ */
+public class ConcurrentPredictCheck {
+
+    private static final String CONFIG_FILE = "conf/benchmark.properties";
+
+    private final Properties properties;
+    private final long seed;
+    private final int numThreads;
+    private final int rounds;
+    private final int numPredictions;
+
+    ConcurrentPredictCheck(Properties properties) {
+        this.properties = properties;
+        this.seed = Long.parseLong(properties.getProperty("bench.seed", "20161205"));
+        this.numThreads = Integer.parseInt(properties.getProperty("check.threads",
+                String.valueOf(2 * Runtime.getRuntime().availableProcessors())));
+        this.rounds = Integer.parseInt(properties.getProperty("check.rounds", "5"));
+        this.numPredictions = Integer.parseInt(properties.getProperty("check.predictions", "100000"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties prop = new Properties();
+        FileInputStream in = new FileInputStream(args.length > 0 ? args[0] : CONFIG_FILE);
+        try {
+            prop.load(in);
+        } finally {
+            in.close();
+        }
+        boolean passed = new ConcurrentPredictCheck(prop).run();
+        System.out.print(passed ? "Finished" : "Failed");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    boolean run() throws Exception {
+        RecommenderBenchmark.prepareData(properties, seed);
+        Configuration conf = configuration();
+        Randoms.seed(seed);
+        DataModel dataModel = new TextDataModel(conf);
+        dataModel.buildDataModel();
+
+        boolean passed = true;
+        for (String className : properties.getProperty("check.recommenders",
+                "net.librec.recommender.cf.UserKNNRecommender,net.librec.recommender.UserKNNRec").split(",")) {
+            if (!className.trim().isEmpty()) {
+                passed &= check(className.trim(), dataModel);
+            }
+        }
+        return passed;
+    }
+
+    private boolean check(String className, DataModel dataModel) throws Exception {
+        Configuration conf = configuration();
+        Randoms.seed(seed);
+        RecommenderContext context = new RecommenderContext(conf, dataModel);
+        String[] similarityKeys = conf.getStrings("rec.recommender.similarities");
+        if (similarityKeys != null && similarityKeys.length > 0) {
+            conf.set("rec.recommender.similarity.key", similarityKeys[0].trim());
+            RecommenderSimilarity similarity = (RecommenderSimilarity) ReflectionUtil.newInstance(
+                    DriverClassUtil.getClass(conf.get("rec.similarity.class")), conf);
+            similarity.buildSimilarityMatrix(dataModel);
+            context.setSimilarity(similarity);
+        }
+        final AbstractRecommender recommender = (AbstractRecommender) ReflectionUtil.newInstance(
+                DriverClassUtil.getClass(className), conf);
+        recommender.setContext(context);
+        recommender.setup();
+        recommender.trainModel();
+
+        // the expected results, from one thread
+        Random random = new Random(seed);
+        final int[] users = new int[numPredictions];
+        final int[] items = new int[numPredictions];
+        final double[] expected = new double[numPredictions];
+        for (int n = 0; n < numPredictions; n++) {
+            users[n] = random.nextInt(recommender.numUsers);
+            items[n] = random.nextInt(recommender.numItems);
+            expected[n] = recommender.predict(users[n], items[n]);
+        }
+
+        final AtomicLong mismatches = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int offset = (int) ((long) numPredictions * t / numThreads);
+            threads[t] = new Thread("predict-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int round = 0; round < rounds; round++) {
+                            for (int k = 0; k < numPredictions; k++) {
+                                int n = (offset + k) % numPredictions;
+                                double rating = recommender.predict(users[n], items[n]);
+                                if (Double.doubleToLongBits(rating) != Double.doubleToLongBits(expected[n])) {
+                                    mismatches.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        String label = className.substring(className.lastIndexOf('.') + 1);
+        long calls = (long) numThreads * rounds * numPredictions;
+        System.out.println(String.format("%-24s %d threads, %,d predicts in %.3f s, %d mismatches%s",
+                label, numThreads, calls, elapsed / 1e9, mismatches.get(),
+                failure.get() == null ? "" : ", failed with " + failure.get()));
+        if (failure.get() != null) {
+            failure.get().printStackTrace();
+        }
+        return mismatches.get() == 0 && failure.get() == null;
+    }
+
+    private Configuration configuration() {
+        Configuration conf = new Configuration();
+        for (String name : properties.stringPropertyNames()) {
+            conf.set(name, properties.getProperty(name));
+        }
+        return conf;
+    }
+}
@@ -0,0 +1,305 @@
+package net.librec.recommender;
+
+import edu.depaul.cdm.csc577.SyntheticData;
+import net.librec.conf.Configuration;
+import net.librec.data.DataModel;
+import net.librec.data.model.TextDataModel;
+import net.librec.math.algorithm.Randoms;
+import net.librec.similarity.RecommenderSimilarity;
+import net.librec.util.DriverClassUtil;
+import net.librec.util.ReflectionUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Benchmark of the recommenders on seeded synthetic data, run like Driver
+ * with a properties file (conf/benchmark.properties by default).
+ * <p>
+ * For every class in bench.recommenders it measures setup (which includes
+ * loading the content file), trainModel, single predict calls and ranking
+ * all users, after bench.warmup unmeasured rounds so the JIT has compiled
+ * the hot loops. It reports the time per phase, predict throughput over the
+ * whole batch, latency percentiles sampled from every bench.latency.every-th
+ * pair, and the bytes allocated by the benchmark thread, which misses what
+ * training threads allocate when a model trains on several threads.
+ * <p>
+ * It is a quick run without dependencies; {@link RecommenderJmhBenchmark}
+ * measures the same phases with JMH.
+ * <p>
+ * It lives in this package because setup, trainModel, predict and
+ * recommendRank are protected in AbstractRecommender.
+ */
+public class RecommenderBenchmark {
+
+    private static final String CONFIG_FILE = "conf/benchmark.properties";
+
+    private final Properties properties;
+    private final long seed;
+    private final int warmup;
+    private final int iterations;
+    private final int numPredictions;
+    private final int latencyEvery;
+
+    /**
+     * Time and allocation of every measured round of one phase.
+     */
+    static class Phase {
+        final String name;
+        final List<Long> nanos = new ArrayList<Long>();
+        final List<Long> bytes = new ArrayList<Long>();
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        void add(long elapsedNanos, long allocatedBytes) {
+            nanos.add(elapsedNanos);
+            bytes.add(allocatedBytes);
+        }
+    }
+
+    RecommenderBenchmark(Properties properties) {
+        this.properties = properties;
+        this.seed = Long.parseLong(properties.getProperty("bench.seed", "20161205"));
+        this.warmup = Integer.parseInt(properties.getProperty("bench.warmup", "1"));
+        this.iterations = Integer.parseInt(properties.getProperty("bench.iterations", "3"));
+        this.numPredictions = Integer.parseInt(properties.getProperty("bench.predictions", "100000"));
+        this.latencyEvery = Math.max(1, Integer.parseInt(properties.getProperty("bench.latency.every", "100")));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties prop = new Properties();
+        FileInputStream in = new FileInputStream(args.length > 0 ? args[0] : CONFIG_FILE);
+        try {
+            prop.load(in);
+        } finally {
+            in.close();
+        }
+        new RecommenderBenchmark(prop).run();
+        System.out.print("Finished");
+    }
+
+    void run() throws Exception {
+        prepareData(properties, seed);
+
+        Configuration conf = configuration();
+        long start = System.nanoTime();
+        Randoms.seed(seed);
+        DataModel dataModel = new TextDataModel(conf);
+        dataModel.buildDataModel();
+        System.out.println("load and split data: " + millis(System.nanoTime() - start) + " ms");
+
+        for (String className : properties.getProperty("bench.recommenders", "").split(",")) {
+            if (!className.trim().isEmpty()) {
+                benchmark(className.trim(), dataModel);
+            }
+        }
+    }
+
+    /**
+     * Generate the synthetic data of bench.size, bench.scale and the seed
+     * into dfs.data.dir, unless it is there already, and point
+     * data.input.path and dfs.content.path at it.
+     *
+     * @param properties settings, updated with the data paths
+     * @param seed       seed of the generator
+     * @throws IOException if the data cannot be written
+     */
+    static void prepareData(Properties properties, long seed) throws IOException {
+        // generate the data once per size, scale and seed
+        String size = properties.getProperty("bench.size", "filmtrust");
+        double scale = Double.parseDouble(properties.getProperty("bench.scale", "1"));
+        SyntheticData data = "yelp".equalsIgnoreCase(size) ? SyntheticData.yelp(scale, seed) : SyntheticData.filmTrust(scale, seed);
+        String dataDir = properties.getProperty("dfs.data.dir", "data");
+        String name = "synthetic-" + size.toLowerCase() + "-" + scale + "-" + seed;
+        File ratingsFile = new File(dataDir, name + "/ratings.txt");
+        File featuresFile = new File(dataDir, name + "/features.txt");
+        if (!ratingsFile.isFile() || !featuresFile.isFile()) {
+            long start = System.nanoTime();
+            long numRatings = data.write(ratingsFile, featuresFile);
+            System.out.println("generated " + numRatings + " ratings of " + data.numUsers + " users on " + data.numItems
+                    + " items in " + millis(System.nanoTime() - start) + " ms");
+        }
+        properties.setProperty("data.input.path", name + "/ratings.txt");
+        properties.setProperty("dfs.content.path", featuresFile.getPath());
+    }
+
+    private void benchmark(String className, DataModel dataModel) throws Exception {
+        Phase similarityPhase = new Phase("similarity");
+        Phase setupPhase = new Phase("setup");
+        Phase trainPhase = new Phase("train");
+        Phase predictPhase = new Phase("predict");
+        Phase rankPhase = new Phase("rank");
+        boolean rank = Boolean.parseBoolean(properties.getProperty("bench.rank", "true"));
+        int numSamples = (numPredictions + latencyEvery - 1) / latencyEvery;
+        long[] latencies = new long[numSamples];
+
+        for (int round = 0; round < warmup + iterations; round++) {
+            boolean measured = round >= warmup;
+            // the content matrix is cached for the process, so every round
+            // reads the file again to include it in the setup time
+            ItemFeatureLoader.clearShared();
+            Configuration conf = configuration();
+            Randoms.seed(seed);
+            RecommenderContext context = new RecommenderContext(conf, dataModel);
+
+            long start = System.nanoTime();
+            long allocated = allocatedBytes();
+            String[] similarityKeys = conf.getStrings("rec.recommender.similarities");
+            if (similarityKeys != null && similarityKeys.length > 0) {
+                conf.set("rec.recommender.similarity.key", similarityKeys[0].trim());
+                RecommenderSimilarity similarity = (RecommenderSimilarity) ReflectionUtil.newInstance(
+                        DriverClassUtil.getClass(conf.get("rec.similarity.class")), conf);
+                similarity.buildSimilarityMatrix(dataModel);
+                context.setSimilarity(similarity);
+            }
+            record(measured, similarityPhase, start, allocated);
+
+            AbstractRecommender recommender = (AbstractRecommender) ReflectionUtil.newInstance(
+                    DriverClassUtil.getClass(className), conf);
+            recommender.setContext(context);
+
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            recommender.setup();
+            record(measured, setupPhase, start, allocated);
+
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            recommender.trainModel();
+            record(measured, trainPhase, start, allocated);
+
+            // the same random pairs in every round, drawn before timing
+            Random random = new Random(seed);
+            int[] users = new int[numPredictions];
+            int[] items = new int[numPredictions];
+            for (int n = 0; n < numPredictions; n++) {
+                users[n] = random.nextInt(recommender.numUsers);
+                items[n] = random.nextInt(recommender.numItems);
+            }
+            // throughput is timed over the whole batch, a timer around every
+            // call of about 100 ns would mostly measure the timer
+            double checksum = 0;
+            start = System.nanoTime();
+            allocated = allocatedBytes();
+            for (int n = 0; n < numPredictions; n++) {
+                checksum += recommender.predict(users[n], items[n]);
+            }
+            record(measured, predictPhase, start, allocated);
+            // latencies come from a separate pass over every latencyEvery-th pair
+            for (int n = 0, sample = 0; n < numPredictions; n += latencyEvery, sample++) {
+                long callStart = System.nanoTime();
+                checksum += recommender.predict(users[n], items[n]);
+                latencies[sample] = System.nanoTime() - callStart;
+            }
+            if (Double.isNaN(checksum)) {
+                // keeps the predictions from being optimized away
+                System.out.println("NaN prediction");
+            }
+
+            if (rank) {
+                start = System.nanoTime();
+                allocated = allocatedBytes();
+                recommender.recommendRank();
+                record(measured, rankPhase, start, allocated);
+            }
+        }
+
+        String label = className.substring(className.lastIndexOf('.') + 1);
+        report(label, similarityPhase, 1);
+        report(label, setupPhase, 1);
+        report(label, trainPhase, 1);
+        report(label, predictPhase, numPredictions);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-24s predict   %,.0f ops/s, sampled latency p50 %.2f us, p99 %.2f us, p99.9 %.2f us"
+                        + " (%d samples, timer %.0f ns)",
+                label, numPredictions / seconds(mean(predictPhase.nanos)),
+                latencies[numSamples / 2] / 1e3, latencies[(int) (numSamples * 0.99)] / 1e3,
+                latencies[(int) (numSamples * 0.999)] / 1e3, numSamples, timerNanos()));
+        if (rank) {
+            report(label, rankPhase, 1);
+        }
+    }
+
+    /**
+     * @return the mean cost of one System.nanoTime() pair, which every
+     * sampled latency includes
+     */
+    private static double timerNanos() {
+        int calls = 100000;
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < calls; n++) {
+            sink += System.nanoTime() - System.nanoTime();
+        }
+        long elapsed = System.nanoTime() - start;
+        return sink == Long.MIN_VALUE ? 0 : elapsed / (double) calls;
+    }
+
+    private void record(boolean measured, Phase phase, long start, long allocated) {
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        if (measured) {
+            phase.add(elapsed, bytes);
+        }
+    }
+
+    private static void report(String label, Phase phase, int operations) {
+        if (phase.nanos.isEmpty()) {
+            return;
+        }
+        long min = Long.MAX_VALUE;
+        for (long nanos : phase.nanos) {
+            min = Math.min(min, nanos);
+        }
+        double bytes = mean(phase.bytes);
+        System.out.println(String.format("%-24s %-9s mean %10.3f ms, min %10.3f ms, alloc %s",
+                label, phase.name, mean(phase.nanos) / 1e6, min / 1e6,
+                bytes < 0 ? "n/a" : String.format("%,.0f B/op", bytes / operations)));
+    }
+
+    private static double mean(List<Long> values) {
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.size();
+    }
+
+    private static double seconds(double nanos) {
+        return nanos / 1e9;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the
+     * JVM cannot tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private Configuration configuration() {
+        Configuration conf = new Configuration();
+        for (String name : properties.stringPropertyNames()) {
+            conf.set(name, properties.getProperty(name));
+        }
+        return conf;
+    }
+}
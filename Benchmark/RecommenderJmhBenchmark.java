@@ -0,0 +1,195 @@
+package net.librec.recommender;
+
+import net.librec.conf.Configuration;
+import net.librec.data.DataModel;
+import net.librec.data.model.TextDataModel;
+import net.librec.math.algorithm.Randoms;
+import net.librec.similarity.RecommenderSimilarity;
+import net.librec.util.DriverClassUtil;
+import net.librec.util.ReflectionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileInputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of setup (with content loading), trainModel, single predict
+ * calls and ranking all users, for every recommender class, on the seeded
+ * synthetic data of RecommenderBenchmark. Everything but the parameters
+ * below is read from the properties file of the config parameter.
+ * <p>
+ * Build it with jmh-core and jmh-generator-annprocess on the classpath next
+ * to LibRec and the recommender modules, so the annotation processor
+ * generates the harness, and run this main. It runs with the gc profiler
+ * (-prof gc) for allocation rates and takes the usual JMH options, e.g.
+ * {@code -p size=yelp -p scale=0.1} or {@code -p recommenderClass=...}.
+ * <p>
+ * It lives in this package because setup, trainModel, predict and
+ * recommendRank are protected in AbstractRecommender.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RecommenderJmhBenchmark {
+
+    @Param({"net.librec.recommender.cf.rating.BiasedMFRecommender",
+            "net.librec.recommender.cf.UserKNNRecommender",
+            "net.librec.recommender.UserKNNRec",
+            "net.librec.recommender.NaiveBayesRecommender",
+            "net.librec.recommender.content.HybridRec"})
+    public String recommenderClass;
+
+    // filmtrust or yelp, scaled by scale
+    @Param({"filmtrust"})
+    public String size;
+
+    @Param({"1"})
+    public String scale;
+
+    @Param({"conf/benchmark.properties"})
+    public String config;
+
+    private Properties properties;
+    private RecommenderContext context;
+    private AbstractRecommender trained;
+    private int[] users;
+    private int[] items;
+    private int next;
+
+    /**
+     * A set up, untrained recommender for every trainModel call.
+     */
+    @State(Scope.Thread)
+    public static class Untrained {
+        AbstractRecommender recommender;
+
+        @Setup(Level.Invocation)
+        public void prepare(RecommenderJmhBenchmark benchmark) throws Exception {
+            recommender = benchmark.newRecommender();
+            recommender.setup();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(RecommenderJmhBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        properties = new Properties();
+        FileInputStream in = new FileInputStream(config);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        properties.setProperty("bench.size", size);
+        properties.setProperty("bench.scale", scale);
+        long seed = Long.parseLong(properties.getProperty("bench.seed", "20161205"));
+        RecommenderBenchmark.prepareData(properties, seed);
+
+        // the data model and similarity are shared by every instance
+        Configuration conf = configuration();
+        Randoms.seed(seed);
+        DataModel dataModel = new TextDataModel(conf);
+        dataModel.buildDataModel();
+        context = new RecommenderContext(conf, dataModel);
+        String[] similarityKeys = conf.getStrings("rec.recommender.similarities");
+        if (similarityKeys != null && similarityKeys.length > 0) {
+            conf.set("rec.recommender.similarity.key", similarityKeys[0].trim());
+            RecommenderSimilarity similarity = (RecommenderSimilarity) ReflectionUtil.newInstance(
+                    DriverClassUtil.getClass(conf.get("rec.similarity.class")), conf);
+            similarity.buildSimilarityMatrix(dataModel);
+            context.setSimilarity(similarity);
+        }
+
+        trained = newRecommender();
+        trained.setup();
+        trained.trainModel();
+
+        Random random = new Random(seed);
+        int numPredictions = Integer.parseInt(properties.getProperty("bench.predictions", "100000"));
+        users = new int[numPredictions];
+        items = new int[numPredictions];
+        for (int n = 0; n < numPredictions; n++) {
+            users[n] = random.nextInt(trained.numUsers);
+            items[n] = random.nextInt(trained.numItems);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AbstractRecommender setup() throws Exception {
+        // the content matrix is cached for the process, read it again
+        ItemFeatureLoader.clearShared();
+        AbstractRecommender recommender = newRecommender();
+        recommender.setup();
+        return recommender;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AbstractRecommender trainModel(Untrained untrained) throws Exception {
+        untrained.recommender.trainModel();
+        return untrained.recommender;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public double predict() throws Exception {
+        int n = next;
+        next = n + 1 == users.length ? 0 : n + 1;
+        return trained.predict(users[n], items[n]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object rank() throws Exception {
+        return trained.recommendRank();
+    }
+
+    AbstractRecommender newRecommender() throws ClassNotFoundException {
+        AbstractRecommender recommender = (AbstractRecommender) ReflectionUtil.newInstance(
+                DriverClassUtil.getClass(recommenderClass), configuration());
+        recommender.setContext(context);
+        return recommender;
+    }
+
+    private Configuration configuration() {
+        Configuration conf = new Configuration();
+        for (String name : properties.stringPropertyNames()) {
+            conf.set(name, properties.getProperty(name));
+        }
+        return conf;
+    }
+}
@@ -0,0 +1,187 @@
+package edu.depaul.cdm.csc577;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Seeded generator of a synthetic UIR ratings file and a matching item
+ * feature file, from FilmTrust size up to Yelp size.
+ * <p>
+ * Ratings come from a small latent model (user bias, item bias and a few
+ * latent factors plus noise) rounded to the rating step, so the data has
+ * structure to learn. Item popularity and the number of ratings per user
+ * are skewed like real data. Items are written to the feature file in the
+ * order they first appear in the ratings file, which is the order LibRec
+ * and the content loader both number them in.
+ */
+public class SyntheticData {
+
+    public final int numUsers;
+    public final int numItems;
+    public final int ratingsPerUser;
+    public final int numFeatures;
+    public final int featuresPerItem;
+    public final double minRate;
+    public final double maxRate;
+    public final double rateStep;
+    public final long seed;
+
+    /**
+     * @param numUsers        number of users
+     * @param numItems        number of items
+     * @param ratingsPerUser  average number of ratings of a user
+     * @param numFeatures     number of distinct item features
+     * @param featuresPerItem average number of features of an item
+     * @param minRate         lowest rating
+     * @param maxRate         highest rating
+     * @param rateStep        distance between two ratings
+     * @param seed            random seed
+     */
+    public SyntheticData(int numUsers, int numItems, int ratingsPerUser, int numFeatures, int featuresPerItem,
+                         double minRate, double maxRate, double rateStep, long seed) {
+        this.numUsers = numUsers;
+        this.numItems = numItems;
+        this.ratingsPerUser = Math.min(ratingsPerUser, numItems);
+        this.numFeatures = numFeatures;
+        this.featuresPerItem = Math.min(featuresPerItem, numFeatures);
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.rateStep = rateStep;
+        this.seed = seed;
+    }
+
+    /**
+     * @param scale multiplies the number of users and items
+     * @param seed  random seed
+     * @return data shaped like FilmTrust: 1.5k users, 2k items, ratings 0.5 to 4
+     */
+    public static SyntheticData filmTrust(double scale, long seed) {
+        return new SyntheticData((int) (1508 * scale), (int) (2071 * scale), 24, 200, 5, 0.5, 4.0, 0.5, seed);
+    }
+
+    /**
+     * @param scale multiplies the number of users and items
+     * @param seed  random seed
+     * @return data shaped like the Yelp reviews: 100k users, 50k items, ratings 1 to 5
+     */
+    public static SyntheticData yelp(double scale, long seed) {
+        return new SyntheticData((int) (100000 * scale), (int) (50000 * scale), 30, 1000, 8, 1.0, 5.0, 1.0, seed);
+    }
+
+    /**
+     * Write the ratings and the item features.
+     *
+     * @param ratingsFile  UIR file, one "user item rating" per line
+     * @param featuresFile content file, one "item feature..." per line
+     * @return the number of ratings written
+     * @throws IOException if a file cannot be written
+     */
+    public long write(File ratingsFile, File featuresFile) throws IOException {
+        Random random = new Random(seed);
+        int numFactors = 3;
+        double mean = (minRate + maxRate) / 2;
+        double spread = (maxRate - minRate) / 4;
+
+        double[] userBiases = new double[numUsers];
+        double[] userFactors = new double[numUsers * numFactors];
+        for (int u = 0; u < numUsers; u++) {
+            userBiases[u] = random.nextGaussian() * spread * 0.5;
+            for (int f = 0; f < numFactors; f++) {
+                userFactors[u * numFactors + f] = random.nextGaussian() * 0.5;
+            }
+        }
+        double[] itemBiases = new double[numItems];
+        double[] itemFactors = new double[numItems * numFactors];
+        for (int i = 0; i < numItems; i++) {
+            itemBiases[i] = random.nextGaussian() * spread * 0.5;
+            for (int f = 0; f < numFactors; f++) {
+                itemFactors[i * numFactors + f] = random.nextGaussian() * 0.5;
+            }
+        }
+
+        // order of first appearance of every item in the ratings file
+        int[] itemOrder = new int[numItems];
+        boolean[] seen = new boolean[numItems];
+        int numSeen = 0;
+
+        long numRatings = 0;
+        int[] userItems = new int[numItems];
+        boolean[] rated = new boolean[numItems];
+        Writer ratings = writer(ratingsFile);
+        try {
+            for (int u = 0; u < numUsers; u++) {
+                // a few users rate a lot, most rate a little
+                int count = (int) Math.min(Math.max(1, numItems / 2), Math.max(1, Math.round(ratingsPerUser * -Math.log(1 - random.nextDouble()))));
+                int numRated = 0;
+                while (numRated < count) {
+                    // popular items are drawn far more often than the tail
+                    int item = (int) (numItems * Math.pow(random.nextDouble(), 3));
+                    if (!rated[item]) {
+                        rated[item] = true;
+                        userItems[numRated++] = item;
+                    }
+                }
+                Arrays.sort(userItems, 0, numRated);
+                for (int n = 0; n < numRated; n++) {
+                    int item = userItems[n];
+                    rated[item] = false;
+                    if (!seen[item]) {
+                        seen[item] = true;
+                        itemOrder[numSeen++] = item;
+                    }
+                    double value = mean + userBiases[u] + itemBiases[item] + random.nextGaussian() * spread * 0.5;
+                    for (int f = 0; f < numFactors; f++) {
+                        value += userFactors[u * numFactors + f] * itemFactors[item * numFactors + f];
+                    }
+                    value = Math.max(minRate, Math.min(maxRate, minRate + Math.round((value - minRate) / rateStep) * rateStep));
+                    ratings.write(u + " " + item + " " + value + "\n");
+                    numRatings++;
+                }
+            }
+        } finally {
+            ratings.close();
+        }
+
+        Writer features = writer(featuresFile);
+        boolean[] hasFeature = new boolean[numFeatures];
+        int[] itemFeatures = new int[numFeatures];
+        try {
+            for (int n = 0; n < numSeen; n++) {
+                StringBuilder line = new StringBuilder().append(itemOrder[n]);
+                int count = Math.min(Math.max(1, numFeatures / 2), 1 + random.nextInt(2 * featuresPerItem - 1));
+                int numItemFeatures = 0;
+                while (numItemFeatures < count) {
+                    // skewed so some features are shared by many items
+                    int feature = (int) (numFeatures * Math.pow(random.nextDouble(), 2));
+                    if (!hasFeature[feature]) {
+                        hasFeature[feature] = true;
+                        itemFeatures[numItemFeatures++] = feature;
+                    }
+                }
+                for (int k = 0; k < numItemFeatures; k++) {
+                    hasFeature[itemFeatures[k]] = false;
+                    line.append(' ').append('f').append(itemFeatures[k]);
+                }
+                features.write(line.append('\n').toString());
+            }
+        } finally {
+            features.close();
+        }
+        return numRatings;
+    }
+
+    private static Writer writer(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create directory " + parent);
+        }
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")), 1 << 16);
+    }
+}
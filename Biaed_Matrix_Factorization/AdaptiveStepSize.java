@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender.cf.rating;
+
+import java.util.Arrays;
+
+/**
+ * Per-parameter step sizes for a block of parameters laid out in rows, such
+ * as the bias and factors of every user. AdaGrad divides the learning rate by
+ * the root of the summed squared gradients, Adam keeps decaying averages of
+ * the gradients and their squares with a bias correction per row.
+ * <p>
+ * Updates are not synchronized, threads running SGD on the same row may lose
+ * each other's statistics just like they lose parameter updates.
+ */
+public class AdaptiveStepSize {
+
+    private final boolean adam;
+    private final int rowSize;
+    private final double beta1;
+    private final double beta2;
+    private final double epsilon;
+
+    // decaying average of the gradients, only used by Adam
+    private final double[] moments;
+    // sum (AdaGrad) or decaying average (Adam) of the squared gradients
+    private final double[] squares;
+    // beta1^t and beta2^t of every row, t being the number of updates of the row
+    private final double[] firstPowers;
+    private final double[] secondPowers;
+
+    private AdaptiveStepSize(boolean adam, int numRows, int rowSize, double beta1, double beta2, double epsilon) {
+        this.adam = adam;
+        this.rowSize = rowSize;
+        this.beta1 = beta1;
+        this.beta2 = beta2;
+        this.epsilon = epsilon;
+        this.squares = new double[numRows * rowSize];
+        if (adam) {
+            moments = new double[numRows * rowSize];
+            firstPowers = new double[numRows];
+            secondPowers = new double[numRows];
+            Arrays.fill(firstPowers, 1.0d);
+            Arrays.fill(secondPowers, 1.0d);
+        } else {
+            moments = null;
+            firstPowers = null;
+            secondPowers = null;
+        }
+    }
+
+    /**
+     * @param numRows number of rows
+     * @param rowSize parameters per row
+     * @param epsilon added to the denominator
+     * @return AdaGrad step sizes
+     */
+    public static AdaptiveStepSize adaGrad(int numRows, int rowSize, double epsilon) {
+        return new AdaptiveStepSize(false, numRows, rowSize, 0.0d, 0.0d, epsilon);
+    }
+
+    /**
+     * @param numRows number of rows
+     * @param rowSize parameters per row
+     * @param beta1   decay of the gradient average
+     * @param beta2   decay of the squared gradient average
+     * @param epsilon added to the denominator
+     * @return Adam step sizes
+     */
+    public static AdaptiveStepSize adam(int numRows, int rowSize, double beta1, double beta2, double epsilon) {
+        return new AdaptiveStepSize(true, numRows, rowSize, beta1, beta2, epsilon);
+    }
+
+    /**
+     * Count one more update of a row, call it before the steps of the update.
+     *
+     * @param row row index
+     */
+    public void advance(int row) {
+        if (adam) {
+            firstPowers[row] *= beta1;
+            secondPowers[row] *= beta2;
+        }
+    }
+
+    /**
+     * @param row       row index
+     * @param col       parameter index within the row
+     * @param gradient  descent direction of the parameter
+     * @param learnRate base learning rate
+     * @return the value to add to the parameter
+     */
+    public double step(int row, int col, double gradient, double learnRate) {
+        int index = row * rowSize + col;
+        if (!adam) {
+            double square = squares[index] + gradient * gradient;
+            squares[index] = square;
+            return learnRate * gradient / (Math.sqrt(square) + epsilon);
+        }
+        double moment = beta1 * moments[index] + (1.0d - beta1) * gradient;
+        double square = beta2 * squares[index] + (1.0d - beta2) * gradient * gradient;
+        moments[index] = moment;
+        squares[index] = square;
+        double correctedMoment = moment / (1.0d - firstPowers[row]);
+        double correctedSquare = square / (1.0d - secondPowers[row]);
+        return learnRate * correctedMoment / (Math.sqrt(correctedSquare) + epsilon);
+    }
+}
@@ -19,9 +19,24 @@ package net.librec.recommender.cf.rating;
 
 import net.librec.annotation.ModelData;
 import net.librec.common.LibrecException;
+import net.librec.math.structure.DenseMatrix;
 import net.librec.math.structure.DenseVector;
-import net.librec.math.structure.MatrixEntry;
+import net.librec.recommender.IncrementalRecommender;
+import net.librec.recommender.LatencyHistogram;
 import net.librec.recommender.MatrixFactorizationRecommender;
+import net.librec.recommender.ModelSnapshot;
+import net.librec.recommender.RecommenderMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Biased Matrix Factorization Recommender
@@ -29,7 +44,7 @@ import net.librec.recommender.MatrixFactorizationRecommender;
  * @author GuoGuibing and Keqiang Wang
  */
 @ModelData({"isRating", "biasedMF", "userFactors", "itemFactors", "userBiases", "itemBiases"})
-public class BiasedMFRecommender extends MatrixFactorizationRecommender {
+public class BiasedMFRecommender extends MatrixFactorizationRecommender implements IncrementalRecommender {
     /**
      * bias regularization
      */
@@ -47,6 +62,63 @@ public class BiasedMFRecommender extends MatrixFactorizationRecommender {
      */
     protected DenseVector itemBiases;
 
+    /**
+     * user and item factors in contiguous row-major arrays, the factors of
+     * user u are userFactorValues[u * numFactors .. (u + 1) * numFactors)
+     */
+    protected double[] userFactorValues;
+    protected double[] itemFactorValues;
+
+    /**
+     * number of threads running SGD, 1 runs the plain serial loop
+     */
+    protected int numThreads;
+
+    /**
+     * reshuffle the train entries before every epoch
+     */
+    protected boolean shuffle;
+
+    /**
+     * number of entries shuffled together, 0 shuffles all entries at once
+     */
+    protected int shuffleBlockSize;
+
+    /**
+     * optimizer: sgd, bolddriver, adagrad or adam
+     */
+    protected String optimizer;
+
+    /**
+     * per-parameter step sizes of the user and item rows (factors followed by
+     * the bias), null for plain SGD
+     */
+    protected AdaptiveStepSize userSteps;
+    protected AdaptiveStepSize itemSteps;
+
+    /**
+     * share of the train ratings held out to stop training early, 0 disables it
+     */
+    protected double validationRatio;
+
+    /**
+     * epochs without a better validation error before training stops
+     */
+    protected int patience;
+
+    /**
+     * train ratings packed once: user, item and rating of every entry
+     */
+    protected PackedRatings trainRatings;
+
+    // arrays of trainRatings in the order of the current epoch
+    private int[] epochUsers;
+    private int[] epochItems;
+    private float[] epochRatings;
+
+    // predict latencies, only recorded with rec.metrics.latency
+    private LatencyHistogram predictLatency;
+
     /*
      * (non-Javadoc)
 	 *
@@ -54,61 +126,437 @@ public class BiasedMFRecommender extends MatrixFactorizationRecommender {
 	 */
     @Override
     protected void setup() throws LibrecException {
-        super.setup();
-        regBias = conf.getDouble("rec.bias.regularization", 0.01);
-        LocalregUser = conf.getDouble("rec.userbias.regularization", 0.01);
-        LocalregItem = conf.getDouble("rec.itembias.regularization", 0.01);
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "setup");
+        try {
+            super.setup();
+            regBias = conf.getDouble("rec.bias.regularization", 0.01);
+            // the biases fall back to the shared bias regularization
+            LocalregUser = conf.getDouble("rec.userbias.regularization", regBias);
+            LocalregItem = conf.getDouble("rec.itembias.regularization", regBias);
+            numThreads = conf.getInt("rec.sgd.threads", 1);
+            shuffle = conf.getBoolean("rec.sgd.shuffle", true);
+            shuffleBlockSize = conf.getInt("rec.sgd.shuffle.block", 0);
+            validationRatio = conf.getDouble("rec.sgd.validation.ratio", 0.0d);
+            patience = conf.getInt("rec.sgd.patience", 5);
+
+            optimizer = conf.get("rec.sgd.optimizer", "sgd").trim().toLowerCase();
+            double epsilon = conf.getDouble("rec.sgd.epsilon", 1e-8);
+            if ("adagrad".equals(optimizer)) {
+                userSteps = AdaptiveStepSize.adaGrad(numUsers, numFactors + 1, epsilon);
+                itemSteps = AdaptiveStepSize.adaGrad(numItems, numFactors + 1, epsilon);
+            } else if ("adam".equals(optimizer)) {
+                double beta1 = conf.getDouble("rec.sgd.adam.beta1", 0.9);
+                double beta2 = conf.getDouble("rec.sgd.adam.beta2", 0.999);
+                userSteps = AdaptiveStepSize.adam(numUsers, numFactors + 1, beta1, beta2, epsilon);
+                itemSteps = AdaptiveStepSize.adam(numItems, numFactors + 1, beta1, beta2, epsilon);
+            } else if ("bolddriver".equals(optimizer)) {
+                // the base class grows the learning rate while the loss falls and halves it otherwise
+                isBoldDriver = true;
+            } else if (!"sgd".equals(optimizer)) {
+                throw new LibrecException("unknown optimizer: " + optimizer);
+            }
 
+            //initialize the userBiased and itemBiased
+            userBiases = new DenseVector(numUsers);
+            itemBiases = new DenseVector(numItems);
 
-        //initialize the userBiased and itemBiased
-        userBiases = new DenseVector(numUsers);
-        itemBiases = new DenseVector(numItems);
+            userBiases.init(initMean, initStd);
+            itemBiases.init(initMean, initStd);
 
-        userBiases.init(initMean, initStd);
-        itemBiases.init(initMean, initStd);
+            // train on flat copies of the initialized factor matrices
+            userFactorValues = toRowMajor(userFactors, numUsers);
+            itemFactorValues = toRowMajor(itemFactors, numItems);
+            predictLatency = conf.getBoolean("rec.metrics.latency", false)
+                    ? RecommenderMetrics.get().latency(getClass().getSimpleName()) : null;
+        } finally {
+            phase.stop();
+        }
     }
 
     @Override
     protected void trainModel() throws LibrecException {
-        for (int iter = 1; iter <= numIterations; iter++) {
-            loss = 0.0d;
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "trainModel");
+        try {
+            // with rec.model.snapshot.load the biases and factors are mapped
+            // from a snapshot written by an earlier run
+            String loadDir = conf.get("rec.model.snapshot.load");
+            if (loadDir != null && !loadDir.trim().isEmpty()) {
+                loadModel(ModelSnapshot.file(loadDir, getClass()));
+                return;
+            }
+
+            // pack the train entries once, in the order the matrix iterates them
+            trainRatings = new PackedRatings(trainMatrix);
+            Random random = new Random(conf.getLong("rec.random.seed", 1L));
+
+            // hold out a random slice of the train ratings to decide when to stop
+            PackedRatings validRatings = null;
+            int numHeldOut = (int) (trainRatings.size() * validationRatio);
+            if (numHeldOut > 0) {
+                trainRatings.shuffle(random, 0);
+                validRatings = trainRatings.holdOut(numHeldOut);
+            }
+            int numEntries = trainRatings.size();
+            double bestValidError = Double.MAX_VALUE;
+            int bestIter = 0;
+            double[][] bestParameters = null;
+
+            // with more than one thread the entries are split into shards, and
+            // every thread updates the shared biases without locking (Hogwild)
+            ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+            long trainStart = System.nanoTime();
+            int numEpochs = 0;
+            try {
+                for (int iter = 1; iter <= numIterations; iter++) {
+                    long epochStart = System.nanoTime();
+                    if (shuffle) {
+                        trainRatings.shuffle(random, shuffleBlockSize);
+                    }
+                    epochUsers = trainRatings.users();
+                    epochItems = trainRatings.items();
+                    epochRatings = trainRatings.ratings();
+
+                    if (executor == null) {
+                        loss = trainEntries(0, numEntries);
+                    } else {
+                        loss = trainShards(executor, numEntries);
+                    }
+
+                    loss *= 0.5d;
+                    numEpochs = iter;
+
+                    long epochNanos = System.nanoTime() - epochStart;
+                    RecommenderMetrics.get().recordEpoch(getClass().getSimpleName(), iter, epochNanos, numEntries, loss);
+                    double epochSeconds = epochNanos / 1e9;
+                    double validError = validRatings == null ? Double.NaN : validate(validRatings);
+                    if (verbose) {
+                        LOG.info(String.format("iter %d: loss = %.6f, valid MAE = %.6f, time = %.3fs, updates/s = %.0f, learnRate = %s",
+                                iter, loss, validError, epochSeconds, numEntries / epochSeconds, learnRate));
+                    }
+
+                    if (validRatings != null) {
+                        if (validError < bestValidError) {
+                            bestValidError = validError;
+                            bestIter = iter;
+                            bestParameters = copyParameters(bestParameters);
+                        } else if (patience > 0 && iter - bestIter >= patience) {
+                            LOG.info("no better valid MAE than " + bestValidError + " of iter " + bestIter
+                                    + " for " + patience + " iterations, stop training");
+                            break;
+                        }
+                    }
+                    if (isConverged(iter) && earlyStop) {
+                        break;
+                    }
+                    updateLRate(iter);
+                }
+            } finally {
+                if (executor != null) {
+                    executor.shutdownNow();
+                }
+            }
+
+            epochUsers = null;
+            epochItems = null;
+            epochRatings = null;
+
+            // continue with the parameters of the best validation epoch
+            if (bestParameters != null) {
+                restoreParameters(bestParameters);
+            }
+            double trainSeconds = (System.nanoTime() - trainStart) / 1e9;
+            LOG.info(String.format("trained %d iterations in %.3fs, %.0f updates/s",
+                    numEpochs, trainSeconds, (double) numEntries * numEpochs / trainSeconds));
+
+            // keep the factor matrices in sync with the trained values
+            fromRowMajor(userFactorValues, userFactors, numUsers);
+            fromRowMajor(itemFactorValues, itemFactors, numItems);
+
+            String saveDir = conf.get("rec.model.snapshot.save");
+            if (saveDir != null && !saveDir.trim().isEmpty()) {
+                saveModel(ModelSnapshot.file(saveDir, getClass()));
+            }
+        } finally {
+            phase.stop();
+        }
+    }
+
+    /**
+     * Write the global mean, biases and factors to a model snapshot.
+     *
+     * @param file snapshot file
+     * @throws LibrecException if the file cannot be written
+     */
+    public synchronized void saveModel(File file) throws LibrecException {
+        ModelSnapshot snapshot = new ModelSnapshot(getClass().getName());
+        snapshot.put("numFactors", new int[]{numFactors});
+        snapshot.put("globalMean", new double[]{globalMean});
+        snapshot.put("userBiases", userBiases.getData());
+        snapshot.put("itemBiases", itemBiases.getData());
+        snapshot.put("userFactors", userFactorValues);
+        snapshot.put("itemFactors", itemFactorValues);
+        try {
+            snapshot.write(file);
+        } catch (IOException e) {
+            throw new LibrecException("Cannot write model snapshot " + file, e);
+        }
+        LOG.info("Saved model snapshot " + file);
+    }
+
+    /**
+     * Read the global mean, biases and factors from a model snapshot instead
+     * of training them.
+     *
+     * @param file snapshot file
+     * @throws LibrecException if the file is no snapshot of this model or does not fit the data
+     */
+    public synchronized void loadModel(File file) throws LibrecException {
+        try {
+            ModelSnapshot snapshot = ModelSnapshot.map(file, getClass().getName());
+            double[] users = snapshot.getDoubles("userBiases");
+            double[] items = snapshot.getDoubles("itemBiases");
+            if (snapshot.getInts("numFactors")[0] != numFactors || users.length != numUsers || items.length != numItems) {
+                throw new LibrecException("Model snapshot " + file + " does not fit " + numUsers + " users, "
+                        + numItems + " items and " + numFactors + " factors");
+            }
+            globalMean = snapshot.getDoubles("globalMean")[0];
+            userBiases = new DenseVector(users);
+            itemBiases = new DenseVector(items);
+            userFactorValues = snapshot.getDoubles("userFactors");
+            itemFactorValues = snapshot.getDoubles("itemFactors");
+        } catch (IOException e) {
+            throw new LibrecException("Cannot read model snapshot " + file, e);
+        }
+        fromRowMajor(userFactorValues, userFactors, numUsers);
+        fromRowMajor(itemFactorValues, itemFactors, numItems);
+        LOG.info("Loaded model snapshot " + file);
+    }
+
+    /**
+     * Fold new ratings into the trained model with rec.update.iterations SGD
+     * passes over the batch, with the optimizer and learning rate training
+     * ended with. Only the biases and factors of the users and items in the
+     * batch change.
+     *
+     * @param userIdxs user index of every rating
+     * @param itemIdxs item index of every rating
+     * @param ratings  ratings
+     * @param count    number of ratings in the batch
+     * @throws LibrecException if a user or item is unknown
+     */
+    @Override
+    public synchronized void update(int[] userIdxs, int[] itemIdxs, double[] ratings, int count) throws LibrecException {
+        float[] batchRatings = new float[count];
+        for (int n = 0; n < count; n++) {
+            if (userIdxs[n] < 0 || userIdxs[n] >= numUsers || itemIdxs[n] < 0 || itemIdxs[n] >= numItems) {
+                throw new LibrecException("unknown user " + userIdxs[n] + " or item " + itemIdxs[n]);
+            }
+            batchRatings[n] = (float) ratings[n];
+        }
 
-            for (MatrixEntry matrixEntry : trainMatrix) {
+        epochUsers = userIdxs;
+        epochItems = itemIdxs;
+        epochRatings = batchRatings;
+        try {
+            int numPasses = conf.getInt("rec.update.iterations", 3);
+            for (int pass = 0; pass < numPasses; pass++) {
+                trainEntries(0, count);
+            }
+        } finally {
+            epochUsers = null;
+            epochItems = null;
+            epochRatings = null;
+        }
+
+        // keep the factor matrices in sync for the rows that changed
+        for (int n = 0; n < count; n++) {
+            for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
+                userFactors.set(userIdxs[n], factorIdx, userFactorValues[userIdxs[n] * numFactors + factorIdx]);
+                itemFactors.set(itemIdxs[n], factorIdx, itemFactorValues[itemIdxs[n] * numFactors + factorIdx]);
+            }
+        }
+    }
+
+    /**
+     * Run one SGD epoch over the entries split into one shard per thread,
+     * and add up the losses of the shards in shard order.
+     *
+     * @param executor   thread pool
+     * @param numEntries number of train entries
+     * @return the loss of the epoch
+     * @throws LibrecException if error occurs
+     */
+    private double trainShards(ExecutorService executor, int numEntries) throws LibrecException {
+        List<Callable<Double>> shards = new ArrayList<>(numThreads);
+        for (int shard = 0; shard < numThreads; shard++) {
+            final int from = (int) ((long) numEntries * shard / numThreads);
+            final int to = (int) ((long) numEntries * (shard + 1) / numThreads);
+            shards.add(new Callable<Double>() {
+                @Override
+                public Double call() throws LibrecException {
+                    return trainEntries(from, to);
+                }
+            });
+        }
+
+        double epochLoss = 0.0d;
+        try {
+            for (Future<Double> shardLoss : executor.invokeAll(shards)) {
+                epochLoss += shardLoss.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LibrecException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof LibrecException ? (LibrecException) e.getCause() : new LibrecException(e.getCause());
+        }
+        return epochLoss;
+    }
+
+    /**
+     * Run SGD over a range of the packed train entries.
+     *
+     * @param from first entry (inclusive)
+     * @param to   last entry (exclusive)
+     * @return the loss of the range
+     * @throws LibrecException if error occurs
+     */
+    private double trainEntries(int from, int to) throws LibrecException {
+        if (userSteps != null) {
+            return trainEntriesAdaptive(from, to);
+        }
+        double shardLoss = 0.0d;
+        for (int entry = from; entry < to; entry++) {
 
-                int userIdx = matrixEntry.row(); // user userIdx
-                int itemIdx = matrixEntry.column(); // item itemIdx
-                double realRating = matrixEntry.get(); // real rating on item itemIdx rated by user userIdx
+            int userIdx = epochUsers[entry]; // user userIdx
+            int itemIdx = epochItems[entry]; // item itemIdx
+            double realRating = epochRatings[entry]; // real rating on item itemIdx rated by user userIdx
 
-                double predictRating = predict(userIdx, itemIdx);
-                double error = realRating - predictRating;
-                loss += error * error;
+            double predictRating = estimate(userIdx, itemIdx);
+            double error = realRating - predictRating;
+            shardLoss += error * error;
 
-                // update user and item bias
-                double userBiasValue = userBiases.get(userIdx);
-                userBiases.add(userIdx, learnRate * (error - LocalregUser * userBiasValue));
-                loss += LocalregUser * userBiasValue * userBiasValue;
+            // update user and item bias
+            double userBiasValue = userBiases.get(userIdx);
+            userBiases.add(userIdx, learnRate * (error - LocalregUser * userBiasValue));
+            shardLoss += LocalregUser * userBiasValue * userBiasValue;
 
-                double itemBiasValue = itemBiases.get(itemIdx);
-                itemBiases.add(itemIdx, learnRate * (error - LocalregItem * itemBiasValue));
-                loss += LocalregItem * itemBiasValue * itemBiasValue;
+            double itemBiasValue = itemBiases.get(itemIdx);
+            itemBiases.add(itemIdx, learnRate * (error - LocalregItem * itemBiasValue));
+            shardLoss += LocalregItem * itemBiasValue * itemBiasValue;
 
-                //update user and item factors
-                //for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
-                //    double userFactorValue = userFactors.get(userIdx, factorIdx);
-                //    double itemFactorValue = itemFactors.get(itemIdx, factorIdx);
+            //update user and item factors
+            int userOffset = userIdx * numFactors;
+            int itemOffset = itemIdx * numFactors;
+            for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
+                double userFactorValue = userFactorValues[userOffset + factorIdx];
+                double itemFactorValue = itemFactorValues[itemOffset + factorIdx];
 
-                //    userFactors.add(userIdx, factorIdx, learnRate * (error * itemFactorValue - LocalregUser * userFactorValue));
-                //    itemFactors.add(itemIdx, factorIdx, learnRate * (error * userFactorValue - LocalregItem * itemFactorValue));
-                //    loss += LocalregUser * userFactorValue * userFactorValue + LocalregItem * itemFactorValue * itemFactorValue;
-                //}
+                userFactorValues[userOffset + factorIdx] = userFactorValue + learnRate * (error * itemFactorValue - regUser * userFactorValue);
+                itemFactorValues[itemOffset + factorIdx] = itemFactorValue + learnRate * (error * userFactorValue - regItem * itemFactorValue);
+                shardLoss += regUser * userFactorValue * userFactorValue + regItem * itemFactorValue * itemFactorValue;
             }
+        }
+        return shardLoss;
+    }
+
+    /**
+     * Run SGD with per-parameter step sizes over a range of the packed train
+     * entries.
+     *
+     * @param from first entry (inclusive)
+     * @param to   last entry (exclusive)
+     * @return the loss of the range
+     * @throws LibrecException if error occurs
+     */
+    private double trainEntriesAdaptive(int from, int to) throws LibrecException {
+        double shardLoss = 0.0d;
+        for (int entry = from; entry < to; entry++) {
+
+            int userIdx = epochUsers[entry];
+            int itemIdx = epochItems[entry];
+            double realRating = epochRatings[entry];
+
+            double predictRating = estimate(userIdx, itemIdx);
+            double error = realRating - predictRating;
+            shardLoss += error * error;
+
+            userSteps.advance(userIdx);
+            itemSteps.advance(itemIdx);
 
-            loss *= 0.5d;
-            if (isConverged(iter) && earlyStop) {
-                break;
+            // the bias is the last parameter of each row
+            double userBiasValue = userBiases.get(userIdx);
+            userBiases.add(userIdx, userSteps.step(userIdx, numFactors, error - LocalregUser * userBiasValue, learnRate));
+            shardLoss += LocalregUser * userBiasValue * userBiasValue;
+
+            double itemBiasValue = itemBiases.get(itemIdx);
+            itemBiases.add(itemIdx, itemSteps.step(itemIdx, numFactors, error - LocalregItem * itemBiasValue, learnRate));
+            shardLoss += LocalregItem * itemBiasValue * itemBiasValue;
+
+            int userOffset = userIdx * numFactors;
+            int itemOffset = itemIdx * numFactors;
+            for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
+                double userFactorValue = userFactorValues[userOffset + factorIdx];
+                double itemFactorValue = itemFactorValues[itemOffset + factorIdx];
+
+                double userGradient = error * itemFactorValue - regUser * userFactorValue;
+                double itemGradient = error * userFactorValue - regItem * itemFactorValue;
+                userFactorValues[userOffset + factorIdx] = userFactorValue + userSteps.step(userIdx, factorIdx, userGradient, learnRate);
+                itemFactorValues[itemOffset + factorIdx] = itemFactorValue + itemSteps.step(itemIdx, factorIdx, itemGradient, learnRate);
+                shardLoss += regUser * userFactorValue * userFactorValue + regItem * itemFactorValue * itemFactorValue;
             }
-            updateLRate(iter);
         }
+        return shardLoss;
+    }
+
+    /**
+     * Mean absolute error on held out ratings, with predictions clipped to the
+     * rating scale like the evaluator does.
+     *
+     * @param ratings held out ratings
+     * @return the mean absolute error
+     * @throws LibrecException if error occurs
+     */
+    private double validate(PackedRatings ratings) throws LibrecException {
+        int[] users = ratings.users();
+        int[] items = ratings.items();
+        float[] values = ratings.ratings();
+        double errorSum = 0.0d;
+        for (int entry = 0; entry < ratings.size(); entry++) {
+            double predictRating = Math.max(minRate, Math.min(maxRate, estimate(users[entry], items[entry])));
+            errorSum += Math.abs(values[entry] - predictRating);
+        }
+        return errorSum / ratings.size();
+    }
+
+    /**
+     * Copy the biases and factors, reusing the arrays of an earlier copy.
+     *
+     * @param copy earlier copy or null
+     * @return user biases, item biases, user factors and item factors
+     */
+    private double[][] copyParameters(double[][] copy) {
+        if (copy == null) {
+            copy = new double[][]{new double[numUsers], new double[numItems],
+                    new double[userFactorValues.length], new double[itemFactorValues.length]};
+        }
+        System.arraycopy(userBiases.getData(), 0, copy[0], 0, numUsers);
+        System.arraycopy(itemBiases.getData(), 0, copy[1], 0, numItems);
+        System.arraycopy(userFactorValues, 0, copy[2], 0, userFactorValues.length);
+        System.arraycopy(itemFactorValues, 0, copy[3], 0, itemFactorValues.length);
+        return copy;
+    }
+
+    /**
+     * Restore the biases and factors from a copy.
+     *
+     * @param copy copy made by {@link #copyParameters(double[][])}
+     */
+    private void restoreParameters(double[][] copy) {
+        System.arraycopy(copy[0], 0, userBiases.getData(), 0, numUsers);
+        System.arraycopy(copy[1], 0, itemBiases.getData(), 0, numItems);
+        System.arraycopy(copy[2], 0, userFactorValues, 0, userFactorValues.length);
+        System.arraycopy(copy[3], 0, itemFactorValues, 0, itemFactorValues.length);
     }
 
     /**
@@ -121,6 +569,55 @@ public class BiasedMFRecommender extends MatrixFactorizationRecommender {
      */
     @Override
     protected double predict(int userIdx, int itemIdx) throws LibrecException {
-        return userBiases.get(userIdx) + itemBiases.get(itemIdx) + globalMean;
+        LatencyHistogram latency = predictLatency;
+        if (latency == null) {
+            return estimate(userIdx, itemIdx);
+        }
+        long start = System.nanoTime();
+        double rating = estimate(userIdx, itemIdx);
+        latency.record(System.nanoTime() - start);
+        return rating;
+    }
+
+    private double estimate(int userIdx, int itemIdx) {
+        int userOffset = userIdx * numFactors;
+        int itemOffset = itemIdx * numFactors;
+        double factorProduct = 0.0d;
+        for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
+            factorProduct += userFactorValues[userOffset + factorIdx] * itemFactorValues[itemOffset + factorIdx];
+        }
+        return userBiases.get(userIdx) + itemBiases.get(itemIdx) + globalMean + factorProduct;
+    }
+
+    /**
+     * Copy a factor matrix into a row-major array.
+     *
+     * @param factors factor matrix
+     * @param numRows number of rows
+     * @return the factors, row after row
+     */
+    private double[] toRowMajor(DenseMatrix factors, int numRows) {
+        double[] values = new double[numRows * numFactors];
+        for (int row = 0; row < numRows; row++) {
+            for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
+                values[row * numFactors + factorIdx] = factors.get(row, factorIdx);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copy a row-major array back into a factor matrix.
+     *
+     * @param values  factors, row after row
+     * @param factors factor matrix
+     * @param numRows number of rows
+     */
+    private void fromRowMajor(double[] values, DenseMatrix factors, int numRows) {
+        for (int row = 0; row < numRows; row++) {
+            for (int factorIdx = 0; factorIdx < numFactors; factorIdx++) {
+                factors.set(row, factorIdx, values[row * numFactors + factorIdx]);
+            }
+        }
     }
 }
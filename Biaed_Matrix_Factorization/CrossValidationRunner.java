@@ -0,0 +1,290 @@
+package edu.depaul.cdm.csc577;
+
+import net.librec.common.LibrecException;
+import net.librec.conf.Configuration;
+import net.librec.data.DataConvertor;
+import net.librec.data.DataModel;
+import net.librec.data.model.TextDataModel;
+import net.librec.eval.RecommenderEvaluator;
+import net.librec.filter.RecommendedFilter;
+import net.librec.math.algorithm.Randoms;
+import net.librec.recommender.Recommender;
+import net.librec.recommender.RecommenderContext;
+import net.librec.recommender.RecommenderMetrics;
+import net.librec.recommender.item.RecommendedItem;
+import net.librec.similarity.RecommenderSimilarity;
+import net.librec.util.DriverClassUtil;
+import net.librec.util.FileUtil;
+import net.librec.util.ReflectionUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the folds of a k-fold cross validation (data.model.splitter=kcv) at
+ * the same time instead of one after the other like RecommenderJob does.
+ * <p>
+ * Every fold gets its own configuration, data model and context. The rating
+ * file is read and converted once and every fold's data model is split from
+ * that conversion. The splits run one after the other, each after seeding
+ * Randoms with the same seed, so every fold sees the same fold assignment;
+ * Randoms is global, so they are not moved into the pool where training of
+ * other folds draws from it too. Building the similarity, training and
+ * evaluating then run on a bounded thread pool.
+ * Work that does not depend on the fold, such as the content feature matrix
+ * of the naive bayes recommender, is loaded once and shared by the folds.
+ * <p>
+ * Like RecommenderJob the splits are seeded with rec.random.seed, so the
+ * fold assignment is the one the job makes. Every fold runs the evaluators
+ * of rec.eval.classes (all of them when none is listed), filters its
+ * recommendations with rec.filter.class and saves them to the same result
+ * file as the job. Training draws from the global Randoms on several threads
+ * at once, so models that use it can differ slightly from a serial run.
+ */
+public class CrossValidationRunner {
+
+    private final Properties properties;
+    private final long seed;
+
+    /**
+     * Result of one fold.
+     */
+    public static class FoldResult {
+        public final int fold;
+        // evaluator name to value, in the order they were run
+        public final Map<String, Double> values;
+        public final long splitMillis;
+        public final long runMillis;
+
+        FoldResult(int fold, Map<String, Double> values, long splitMillis, long runMillis) {
+            this.fold = fold;
+            this.values = values;
+            this.splitMillis = splitMillis;
+            this.runMillis = runMillis;
+        }
+    }
+
+    /**
+     * @param properties  configuration of the job
+     * @param defaultSeed seed of Randoms for splitting the data when
+     *                    rec.random.seed is not set
+     */
+    public CrossValidationRunner(Properties properties, long defaultSeed) {
+        this.properties = properties;
+        String seed = properties.getProperty("rec.random.seed");
+        this.seed = seed == null || seed.trim().isEmpty() ? defaultSeed : Long.parseLong(seed.trim());
+    }
+
+    /**
+     * Run all folds and print the result of every fold and their average.
+     *
+     * @param numThreads maximum number of folds running at the same time
+     * @return the results of the folds, in fold order
+     * @throws Exception if a fold fails
+     */
+    public List<FoldResult> run(int numThreads) throws Exception {
+        long start = System.nanoTime();
+        int numFolds = configuration().getInt("data.splitter.cv.number", 5);
+
+        // the rating file is parsed once, the folds only split it
+        long convertStart = System.nanoTime();
+        RecommenderMetrics.Phase convert = RecommenderMetrics.get().startPhase("folds", "convert");
+        DataConvertor convertor;
+        try {
+            SharedDataModel converted = new SharedDataModel(configuration(), null);
+            converted.buildConvert();
+            convertor = converted.convertor();
+        } finally {
+            convert.stop();
+        }
+        long convertMillis = (System.nanoTime() - convertStart) / 1000000;
+
+        final List<Callable<FoldResult>> folds = new ArrayList<Callable<FoldResult>>();
+        for (int fold = 1; fold <= numFolds; fold++) {
+            final Configuration conf = configuration();
+            conf.set("data.splitter.cv.index", String.valueOf(fold));
+
+            long splitStart = System.nanoTime();
+            RecommenderMetrics.Phase split = RecommenderMetrics.get().startPhase("fold " + fold, "split");
+            final DataModel dataModel;
+            try {
+                Randoms.seed(seed);
+                dataModel = new SharedDataModel(conf, convertor);
+                dataModel.buildDataModel();
+            } finally {
+                split.stop();
+            }
+            final long splitMillis = (System.nanoTime() - splitStart) / 1000000;
+
+            final int foldIndex = fold;
+            folds.add(new Callable<FoldResult>() {
+                @Override
+                public FoldResult call() throws Exception {
+                    return runFold(foldIndex, conf, dataModel, splitMillis);
+                }
+            });
+        }
+
+        List<FoldResult> results = new ArrayList<FoldResult>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numFolds)));
+        try {
+            for (Future<FoldResult> result : executor.invokeAll(folds)) {
+                results.add(result.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long foldMillis = 0;
+        for (FoldResult result : results) {
+            System.out.println("fold " + result.fold + ": " + result.values
+                    + ", split " + result.splitMillis + " ms, train and evaluate " + result.runMillis + " ms");
+            foldMillis += result.splitMillis + result.runMillis;
+        }
+        for (String name : results.get(0).values.keySet()) {
+            double sum = 0, sumSquares = 0;
+            for (FoldResult result : results) {
+                double value = result.values.get(name);
+                sum += value;
+                sumSquares += value * value;
+            }
+            double mean = sum / results.size();
+            double std = Math.sqrt(Math.max(0, sumSquares / results.size() - mean * mean));
+            System.out.println(name + " over " + results.size() + " folds: mean = " + mean + ", std = " + std);
+        }
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+        System.out.println("wall time " + wallMillis + " ms, convert " + convertMillis + " ms, summed fold time " + foldMillis + " ms");
+        return results;
+    }
+
+    /**
+     * Text data model that takes the converted ratings from another one
+     * instead of reading the rating file again. Without a convertor it reads
+     * the file like TextDataModel.
+     */
+    private static class SharedDataModel extends TextDataModel {
+        private final DataConvertor shared;
+
+        SharedDataModel(Configuration conf, DataConvertor shared) {
+            super(conf);
+            this.shared = shared;
+        }
+
+        @Override
+        public void buildConvert() throws LibrecException {
+            if (shared == null) {
+                super.buildConvert();
+            } else {
+                dataConvertor = shared;
+            }
+        }
+
+        DataConvertor convertor() {
+            return dataConvertor;
+        }
+    }
+
+    private static FoldResult runFold(int fold, Configuration conf, DataModel dataModel, long splitMillis) throws Exception {
+        long start = System.nanoTime();
+        RecommenderContext context = new RecommenderContext(conf, dataModel);
+
+        // the first configured similarity, like RecommenderJob sets on the context,
+        // unless the model comes from a snapshot
+        String[] similarityKeys = conf.getStrings("rec.recommender.similarities");
+        if (similarityKeys != null && similarityKeys.length > 0 && !TimedRecommenderJob.loadsSnapshot(conf)) {
+            RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase("fold " + fold, "similarity");
+            try {
+                conf.set("rec.recommender.similarity.key", similarityKeys[0].trim());
+                RecommenderSimilarity similarity = (RecommenderSimilarity) ReflectionUtil.newInstance(
+                        DriverClassUtil.getClass(conf.get("rec.similarity.class")), conf);
+                similarity.buildSimilarityMatrix(dataModel);
+                context.setSimilarity(similarity);
+            } finally {
+                phase.stop();
+            }
+        }
+
+        Recommender recommender = (Recommender) ReflectionUtil.newInstance(
+                DriverClassUtil.getClass(conf.get("rec.recommender.class")), conf);
+        recommender.recommend(context);
+
+        Map<String, Double> values = new LinkedHashMap<String, Double>();
+        if (conf.getBoolean("rec.eval.enable", false)) {
+            RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase("fold " + fold, "evaluate");
+            try {
+                // the evaluators RecommenderJob runs, all of them without rec.eval.classes
+                String[] evaluatorKeys = conf.getStrings("rec.eval.classes");
+                if (evaluatorKeys != null && evaluatorKeys.length > 0) {
+                    for (String evaluatorKey : evaluatorKeys) {
+                        RecommenderEvaluator evaluator = (RecommenderEvaluator) ReflectionUtil.newInstance(
+                                DriverClassUtil.getClass(evaluatorKey.trim()), null);
+                        evaluator.setTopN(conf.getInt("rec.recommender.ranking.topn", 10));
+                        values.put(evaluator.getClass().getSimpleName(), recommender.evaluate(evaluator));
+                    }
+                } else {
+                    values.putAll(recommender.evaluateMap());
+                }
+            } finally {
+                phase.stop();
+            }
+        }
+
+        saveResult(fold, conf, filterResult(conf, recommender.getRecommendedList()));
+        return new FoldResult(fold, values, splitMillis, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Filter the recommendations with rec.filter.class, like RecommenderJob.
+     */
+    private static List<RecommendedItem> filterResult(Configuration conf, List<RecommendedItem> recommendedList)
+            throws ClassNotFoundException {
+        String filterKey = conf.get("rec.filter.class");
+        if (filterKey == null || filterKey.trim().isEmpty()) {
+            return recommendedList;
+        }
+        RecommendedFilter filter = (RecommendedFilter) ReflectionUtil.newInstance(DriverClassUtil.getClass(filterKey.trim()), null);
+        return filter.filter(recommendedList);
+    }
+
+    /**
+     * Write the recommendations of a fold to the file RecommenderJob writes
+     * them to, one "user,item,value" line each.
+     */
+    private static void saveResult(int fold, Configuration conf, List<RecommendedItem> recommendedList) throws Exception {
+        if (recommendedList == null || recommendedList.isEmpty()) {
+            return;
+        }
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase("fold " + fold, "saveResult");
+        try {
+            String algoSimpleName = DriverClassUtil.getDriverName(DriverClassUtil.getClass(conf.get("rec.recommender.class")));
+            String outputPath = conf.get("dfs.result.dir") + "/" + conf.get("data.input.path") + "-" + algoSimpleName
+                    + "-output/" + algoSimpleName + "-" + fold;
+            StringBuilder sb = new StringBuilder();
+            for (RecommendedItem recItem : recommendedList) {
+                sb.append(recItem.getUserId()).append(",").append(recItem.getItemId()).append(",")
+                        .append(recItem.getValue()).append("\n");
+            }
+            FileUtil.writeString(outputPath, sb.toString());
+        } finally {
+            phase.stop();
+        }
+    }
+
+    private Configuration configuration() {
+        Configuration conf = new Configuration();
+        for (String name : properties.stringPropertyNames()) {
+            conf.set(name, properties.getProperty(name));
+        }
+        return conf;
+    }
+}
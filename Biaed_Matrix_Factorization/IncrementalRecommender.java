@@ -0,0 +1,25 @@
+package net.librec.recommender;
+
+import net.librec.common.LibrecException;
+
+/**
+ * A trained recommender that can fold new ratings into its model without
+ * training again over the whole train matrix.
+ * <p>
+ * Updates are not synchronized with predictions, callers that predict while
+ * updating must serialize the two.
+ */
+public interface IncrementalRecommender {
+
+    /**
+     * Add a batch of new or changed ratings to the model. The users and items
+     * must be known to the trained model.
+     *
+     * @param userIdxs user index of every rating
+     * @param itemIdxs item index of every rating
+     * @param ratings  ratings
+     * @param count    number of ratings in the batch
+     * @throws LibrecException if a user or item is unknown or the update fails
+     */
+    void update(int[] userIdxs, int[] itemIdxs, double[] ratings, int count) throws LibrecException;
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender.cf.rating;
+
+import net.librec.math.structure.MatrixEntry;
+import net.librec.math.structure.SparseMatrix;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The entries of a rating matrix packed into parallel primitive arrays, so an
+ * SGD epoch is a plain loop over {@link #users()}, {@link #items()} and
+ * {@link #ratings()}. The entries can be reshuffled in place between epochs.
+ */
+public class PackedRatings {
+
+    private int size;
+    private int[] users;
+    private int[] items;
+    private float[] ratings;
+
+    // spare arrays the blocks are copied into when they are reordered
+    private int[] spareUsers;
+    private int[] spareItems;
+    private float[] spareRatings;
+
+    /**
+     * Pack the entries in the order the matrix iterates them.
+     *
+     * @param trainMatrix rating matrix
+     */
+    public PackedRatings(SparseMatrix trainMatrix) {
+        size = trainMatrix.size();
+        users = new int[size];
+        items = new int[size];
+        ratings = new float[size];
+        int entry = 0;
+        for (MatrixEntry matrixEntry : trainMatrix) {
+            users[entry] = matrixEntry.row();
+            items[entry] = matrixEntry.column();
+            ratings[entry] = (float) matrixEntry.get();
+            entry++;
+        }
+    }
+
+    private PackedRatings(int[] users, int[] items, float[] ratings) {
+        this.size = users.length;
+        this.users = users;
+        this.items = items;
+        this.ratings = ratings;
+    }
+
+    /**
+     * Move the last entries out into their own packed ratings, for example
+     * as a validation slice after a shuffle.
+     *
+     * @param count number of entries to move
+     * @return the moved entries
+     */
+    public PackedRatings holdOut(int count) {
+        int from = size - count;
+        PackedRatings heldOut = new PackedRatings(Arrays.copyOfRange(users, from, size),
+                Arrays.copyOfRange(items, from, size), Arrays.copyOfRange(ratings, from, size));
+        size = from;
+        users = Arrays.copyOf(users, size);
+        items = Arrays.copyOf(items, size);
+        ratings = Arrays.copyOf(ratings, size);
+        spareUsers = null;
+        spareItems = null;
+        spareRatings = null;
+        return heldOut;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the user of every entry, in the current order
+     */
+    public int[] users() {
+        return users;
+    }
+
+    /**
+     * @return the item of every entry, in the current order
+     */
+    public int[] items() {
+        return items;
+    }
+
+    /**
+     * @return the rating of every entry, in the current order
+     */
+    public float[] ratings() {
+        return ratings;
+    }
+
+    /**
+     * Shuffle the entries in place. With a block size the entries are only
+     * shuffled within blocks of that many entries, which keeps the swaps in
+     * cache, and the blocks are then copied out in a random order. The block
+     * boundaries are moved by a random offset on every call, so entries end
+     * up in different blocks from one shuffle to the next even when the size
+     * is a multiple of the block size.
+     *
+     * @param random    random number generator
+     * @param blockSize entries per block, 0 or less shuffles the whole array
+     */
+    public void shuffle(Random random, int blockSize) {
+        if (blockSize <= 0 || blockSize >= size) {
+            shuffle(random, 0, size);
+            return;
+        }
+
+        // block b starts at b * blockSize + shift, the first one at 0, so
+        // with a non-zero shift the first block is shorter than the others
+        int first = random.nextInt(blockSize);
+        int shift = first == 0 ? 0 : first - blockSize;
+        int numBlocks = (size - shift + blockSize - 1) / blockSize;
+        int[] blockOrder = new int[numBlocks];
+        for (int block = 0; block < numBlocks; block++) {
+            shuffle(random, blockStart(block, blockSize, shift), blockStart(block + 1, blockSize, shift));
+            blockOrder[block] = block;
+        }
+        for (int block = numBlocks - 1; block > 0; block--) {
+            int other = random.nextInt(block + 1);
+            int tmp = blockOrder[block];
+            blockOrder[block] = blockOrder[other];
+            blockOrder[other] = tmp;
+        }
+
+        if (spareUsers == null) {
+            spareUsers = new int[size];
+            spareItems = new int[size];
+            spareRatings = new float[size];
+        }
+        int to = 0;
+        for (int block : blockOrder) {
+            int from = blockStart(block, blockSize, shift);
+            int length = blockStart(block + 1, blockSize, shift) - from;
+            System.arraycopy(users, from, spareUsers, to, length);
+            System.arraycopy(items, from, spareItems, to, length);
+            System.arraycopy(ratings, from, spareRatings, to, length);
+            to += length;
+        }
+
+        int[] tmpUsers = users;
+        users = spareUsers;
+        spareUsers = tmpUsers;
+        int[] tmpItems = items;
+        items = spareItems;
+        spareItems = tmpItems;
+        float[] tmpRatings = ratings;
+        ratings = spareRatings;
+        spareRatings = tmpRatings;
+    }
+
+    private int blockStart(int block, int blockSize, int shift) {
+        return Math.max(0, Math.min(size, block * blockSize + shift));
+    }
+
+    /**
+     * Fisher-Yates shuffle of the entries in [from, to).
+     */
+    private void shuffle(Random random, int from, int to) {
+        for (int entry = to - 1; entry > from; entry--) {
+            int other = from + random.nextInt(entry - from + 1);
+
+            int user = users[entry];
+            users[entry] = users[other];
+            users[other] = user;
+
+            int item = items[entry];
+            items[entry] = items[other];
+            items[other] = item;
+
+            float rating = ratings[entry];
+            ratings[entry] = ratings[other];
+            ratings[other] = rating;
+        }
+    }
+}
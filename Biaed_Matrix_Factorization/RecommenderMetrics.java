@@ -0,0 +1,293 @@
+package net.librec.recommender;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Process wide registry of what a recommender job spends its time on: wall
+ * and CPU time per phase (split, similarity, setup, trainModel, ...), time
+ * and throughput of every SGD epoch, and a predict latency histogram per
+ * component. Everything can be dumped as JSON at the end of a job.
+ * <p>
+ * Phases and epochs are also emitted as JFR events (librec.Phase and
+ * librec.Epoch) when the JVM has the JFR event API, so they line up with GC
+ * and allocation events in a flight recording. The events are defined at
+ * runtime, so this class still runs on JVMs without JFR.
+ */
+public class RecommenderMetrics {
+
+    private static final RecommenderMetrics INSTANCE = new RecommenderMetrics();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final List<String> phases = new ArrayList<String>();
+    private final List<String> epochs = new ArrayList<String>();
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+    private final Jfr jfr = new Jfr();
+
+    /**
+     * A phase started with {@link #startPhase(String, String)}.
+     */
+    public class Phase {
+        private final String component;
+        private final String name;
+        private final long wallStart;
+        private final long cpuStart;
+
+        Phase(String component, String name) {
+            this.component = component;
+            this.name = name;
+            this.wallStart = System.nanoTime();
+            this.cpuStart = cpuTime();
+        }
+
+        /**
+         * Record the time since the phase started.
+         */
+        public void stop() {
+            long cpuEnd = cpuTime();
+            recordPhase(component, name, System.nanoTime() - wallStart, cpuStart < 0 || cpuEnd < 0 ? -1 : cpuEnd - cpuStart);
+        }
+    }
+
+    private RecommenderMetrics() {
+    }
+
+    /**
+     * @return the registry of this process
+     */
+    public static RecommenderMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start timing a phase on the calling thread. The CPU time is that of the
+     * calling thread, so it misses work done on worker threads.
+     *
+     * @param component name of the recommender or job
+     * @param name      name of the phase
+     * @return the running phase
+     */
+    public Phase startPhase(String component, String name) {
+        return new Phase(component, name);
+    }
+
+    /**
+     * @param component  name of the recommender or job
+     * @param name       name of the phase
+     * @param wallNanos  wall time in nanoseconds
+     * @param cpuNanos   CPU time in nanoseconds, -1 if unknown
+     */
+    public void recordPhase(String component, String name, long wallNanos, long cpuNanos) {
+        String json = String.format(Locale.ROOT, "{\"component\": %s, \"phase\": %s, \"wallMillis\": %.3f, \"cpuMillis\": %s}",
+                quote(component), quote(name), wallNanos / 1e6, cpuNanos < 0 ? "null" : String.format(Locale.ROOT, "%.3f", cpuNanos / 1e6));
+        synchronized (phases) {
+            phases.add(json);
+        }
+        jfr.phase(component, name, wallNanos, cpuNanos);
+    }
+
+    /**
+     * @param component name of the recommender
+     * @param epoch     epoch number
+     * @param wallNanos wall time of the epoch in nanoseconds
+     * @param updates   number of SGD updates in the epoch
+     * @param loss      loss after the epoch
+     */
+    public void recordEpoch(String component, int epoch, long wallNanos, long updates, double loss) {
+        String json = String.format(Locale.ROOT, "{\"component\": %s, \"epoch\": %d, \"wallMillis\": %.3f, \"updates\": %d, "
+                        + "\"updatesPerSecond\": %.1f, \"loss\": %s}",
+                quote(component), epoch, wallNanos / 1e6, updates, updates / (wallNanos / 1e9), number(loss));
+        synchronized (epochs) {
+            epochs.add(json);
+        }
+        jfr.epoch(component, epoch, wallNanos, updates, loss);
+    }
+
+    /**
+     * @param component name of the recommender
+     * @return the predict latency histogram of the component, created on first use
+     */
+    public LatencyHistogram latency(String component) {
+        synchronized (latencies) {
+            LatencyHistogram histogram = latencies.get(component);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                latencies.put(component, histogram);
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * @return phases, epochs and latency percentiles as a JSON object
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"phases\": [");
+        synchronized (phases) {
+            append(json, phases);
+        }
+        json.append("],\n  \"epochs\": [");
+        synchronized (epochs) {
+            append(json, epochs);
+        }
+        json.append("],\n  \"predictLatency\": {");
+        synchronized (latencies) {
+            String separator = "\n    ";
+            for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                json.append(separator).append(quote(entry.getKey())).append(String.format(Locale.ROOT,
+                        ": {\"count\": %d, \"p50Micros\": %.3f, \"p99Micros\": %.3f, \"p999Micros\": %.3f}",
+                        histogram.count(), histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3,
+                        histogram.percentile(0.999) / 1e3));
+                separator = ",\n    ";
+            }
+        }
+        return json.append("\n  }\n}\n").toString();
+    }
+
+    /**
+     * Write {@link #toJson()} to a file.
+     *
+     * @param file output file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create directory " + parent);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private long cpuTime() {
+        try {
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private static void append(StringBuilder json, List<String> values) {
+        String separator = "\n    ";
+        for (String value : values) {
+            json.append(separator).append(value);
+            separator = ",\n    ";
+        }
+        if (!values.isEmpty()) {
+            json.append("\n  ");
+        }
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.valueOf(value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int n = 0; n < value.length(); n++) {
+            char c = value.charAt(n);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * JFR events defined through jdk.jfr.EventFactory by reflection, since
+     * the code is built for JVMs that may not have the JFR API. Without it,
+     * or if anything fails, the events are silently dropped.
+     */
+    private static class Jfr {
+        private final Object phaseFactory;
+        private final Object epochFactory;
+        private final Method newEvent;
+        private final Method set;
+        private final Method commit;
+
+        Jfr() {
+            Object phase = null, epoch = null;
+            Method newEventMethod = null, setMethod = null, commitMethod = null;
+            try {
+                phase = factory("librec.Phase", "LibRec Phase", new Object[][]{
+                        {String.class, "component"}, {String.class, "phase"}, {long.class, "wallNanos"}, {long.class, "cpuNanos"}});
+                epoch = factory("librec.Epoch", "LibRec Epoch", new Object[][]{
+                        {String.class, "component"}, {int.class, "epoch"}, {long.class, "wallNanos"}, {long.class, "updates"},
+                        {double.class, "loss"}});
+                newEventMethod = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                setMethod = eventClass.getMethod("set", int.class, Object.class);
+                commitMethod = eventClass.getMethod("commit");
+            } catch (Throwable e) {
+                phase = null;
+                epoch = null;
+            }
+            phaseFactory = phase;
+            epochFactory = epoch;
+            newEvent = newEventMethod;
+            set = setMethod;
+            commit = commitMethod;
+        }
+
+        private static Object factory(String name, String label, Object[][] fields) throws Exception {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            List<Object> annotations = Arrays.asList(
+                    annotation.newInstance(Class.forName("jdk.jfr.Name"), name),
+                    annotation.newInstance(Class.forName("jdk.jfr.Label"), label),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"LibRec"}));
+            Constructor<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+            List<Object> descriptors = new ArrayList<Object>();
+            for (Object[] field : fields) {
+                descriptors.add(valueDescriptor.newInstance(field[0], field[1]));
+            }
+            return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+                    .invoke(null, annotations, descriptors);
+        }
+
+        void phase(String component, String name, long wallNanos, long cpuNanos) {
+            emit(phaseFactory, component, name, wallNanos, cpuNanos);
+        }
+
+        void epoch(String component, int epoch, long wallNanos, long updates, double loss) {
+            emit(epochFactory, component, epoch, wallNanos, updates, loss);
+        }
+
+        private void emit(Object factory, Object... values) {
+            if (factory == null) {
+                return;
+            }
+            try {
+                Object event = newEvent.invoke(factory);
+                for (int n = 0; n < values.length; n++) {
+                    set.invoke(event, n, values[n]);
+                }
+                commit.invoke(event);
+            } catch (Exception e) {
+                // a recording problem must never fail the job
+            }
+        }
+    }
+}
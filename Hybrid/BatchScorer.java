@@ -0,0 +1,28 @@
+package net.librec.recommender;
+
+import net.librec.common.LibrecException;
+
+/**
+ * A recommender that can be used as a component of a weighted hybrid. It
+ * scores single (user, item) pairs, and several candidate items of a user
+ * with one call, so the hybrid can fuse whole score arrays.
+ */
+public interface BatchScorer {
+
+    /**
+     * @param userIdx user index
+     * @param itemIdx item index
+     * @return the score of the item for the user
+     * @throws LibrecException if error occurs
+     */
+    double predict(int userIdx, int itemIdx) throws LibrecException;
+
+    /**
+     * @param userIdx    user index
+     * @param candidates candidate item indices
+     * @param count      number of candidates
+     * @param scores     output scores, parallel to candidates
+     * @throws LibrecException if error occurs
+     */
+    void predict(int userIdx, int[] candidates, int count, double[] scores) throws LibrecException;
+}
@@ -2,7 +2,9 @@ package edu.depaul.cdm.csc577;
 import net.librec.conf.Configuration;
 import net.librec.job.RecommenderJob;
 import net.librec.math.algorithm.Randoms;
+import net.librec.recommender.RecommenderMetrics;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.util.Properties;
 
@@ -26,8 +28,23 @@ public class Driver {
         }
 
         Randoms.seed(20161205);
-        RecommenderJob job = new RecommenderJob(conf);
-        job.runJob();
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase("Driver", "job");
+        try {
+            // with data.splitter.cv.threads the folds of a kcv split run at the same time
+            int cvThreads = conf.getInt("data.splitter.cv.threads", 1);
+            if ("kcv".equals(conf.get("data.model.splitter")) && cvThreads > 1) {
+                new CrossValidationRunner(prop, 20161205).run(cvThreads);
+            } else {
+                // the job times building the data model and the similarities
+                RecommenderJob job = new TimedRecommenderJob(conf);
+                job.runJob();
+            }
+        } finally {
+            phase.stop();
+        }
+        // phase timings, epochs and predict latencies of the run
+        String metricsFile = conf.get("rec.metrics.json", conf.get("dfs.result.dir", "result") + "/metrics.json");
+        RecommenderMetrics.get().writeJson(new File(metricsFile));
         System.out.print("Finished");
     }
 }
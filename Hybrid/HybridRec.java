@@ -1,64 +1,342 @@
 package net.librec.recommender.content;
+import net.librec.recommender.BatchScorer;
+import net.librec.recommender.IncrementalRecommender;
+import net.librec.recommender.LatencyHistogram;
 import net.librec.recommender.NaiveBayesRecommender;
+import net.librec.recommender.RecommenderMetrics;
+import net.librec.recommender.TrainingCache;
+import net.librec.recommender.TrainingCacheAware;
 import net.librec.annotation.ModelData;
 import net.librec.common.LibrecException;
 import net.librec.recommender.AbstractRecommender;
 import net.librec.recommender.UserKNNRec;
+import net.librec.recommender.item.RecommendedItemList;
+import net.librec.recommender.item.RecommendedList;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+
+/**
+ * Weighted hybrid of any number of recommenders.
+ * <p>
+ * The components are listed in rec.hybrid.components as class names, with
+ * their weights in rec.hybrid.weights. Without that list the hybrid is the
+ * naive bayes recommender weighted by weight.nb plus the user knn recommender
+ * weighted by weight.cf. Components implementing {@link BatchScorer} score all
+ * candidate items of a user in one call, others are scored item by item.
+ */
 @ModelData({"isRanking", "trainMatrix"})
-public class HybridRec extends AbstractRecommender
+public class HybridRec extends AbstractRecommender implements IncrementalRecommender
 
 {
 
-    // make our bayes rec and knn collabroative rec
-    NaiveBayesRecommender NBRec;
-    UserKNNRec UKRec;
-    double weight_nb;
-    double weight_cf;
+    // the component recs and the weight of each one
+    List<Component> components;
+    // shared views of the train matrix
+    TrainingCache trainingCache;
+    // predict latencies, only recorded with rec.metrics.latency
+    private LatencyHistogram predictLatency;
 
 
     @Override
     protected void setup() throws LibrecException {
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "setup");
+        try {
+            // must set the context for each of the recs and run the setup method which was changed to public
+            super.setup();
+            context = getContext();
 
-        // must set the context for each of the recs and run the setup method which was changed to public
-        super.setup();
-        context = getContext();
+            // get the recs and weights for making hybrid prediction, once
+            List<String> classNames = new ArrayList<String>();
+            List<Double> weights = new ArrayList<Double>();
+            String componentList = conf.get("rec.hybrid.components");
+            if (componentList == null || componentList.trim().isEmpty()) {
+                classNames.add(NaiveBayesRecommender.class.getName());
+                weights.add(conf.getDouble("weight.nb"));
+                classNames.add(UserKNNRec.class.getName());
+                weights.add(conf.getDouble("weight.cf"));
+            } else {
+                String[] classList = componentList.split(",");
+                String[] weightList = conf.get("rec.hybrid.weights", "").split(",");
+                if (weightList.length != classList.length) {
+                    throw new LibrecException("rec.hybrid.weights needs one weight per component in rec.hybrid.components, got "
+                            + weightList.length + " weights for " + classList.length + " components");
+                }
+                for (int c = 0; c < classList.length; c++) {
+                    if (weightList[c].trim().isEmpty()) {
+                        throw new LibrecException("rec.hybrid.weights needs one weight per component in rec.hybrid.components");
+                    }
+                    weights.add(Double.parseDouble(weightList[c].trim()));
+                    classNames.add(classList[c].trim());
+                }
+            }
 
-        NBRec = new NaiveBayesRecommender();
-        NBRec.setContext(context);
-        NBRec.setup();
+            // a component with a zero weight never contributes to a prediction,
+            // so with rec.hybrid.skip.zero.weight it is not even built
+            boolean skipZeroWeight = conf.getBoolean("rec.hybrid.skip.zero.weight", false);
 
-        UKRec = new UserKNNRec();
-        UKRec.setContext(context);
-        UKRec.setup();
+            // the derived training data (user means, rows, columns) is built
+            // once and shared by every component that can read it
+            trainingCache = new TrainingCache(trainMatrix, globalMean, conf.getInt("rec.knn.train.threads", 1));
 
+            components = new ArrayList<Component>();
+            for (int c = 0; c < classNames.size(); c++) {
+                if (weights.get(c) == 0 && skipZeroWeight) {
+                    continue;
+                }
+                Component component = new Component(classNames.get(c), weights.get(c));
+                component.recommender.setContext(context);
+                if (component.recommender instanceof TrainingCacheAware) {
+                    ((TrainingCacheAware) component.recommender).setTrainingCache(trainingCache);
+                }
+                component.invoke("setup");
+                components.add(component);
+            }
+            predictLatency = conf.getBoolean("rec.metrics.latency", false)
+                    ? RecommenderMetrics.get().latency(getClass().getSimpleName()) : null;
+        } finally {
+            phase.stop();
+        }
     }
 
     protected void trainModel () throws LibrecException{
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "trainModel");
+        try {
+            // train each model. the only state the models share is the training
+            // cache, which is built here first so they all start from the
+            // finished views. the rest is their own, so they are trained at the
+            // same time and the train time is that of the slowest one
+            trainingCache.build();
+            List<Callable<Void>> trainers = new ArrayList<Callable<Void>>();
+            for (final Component component : components) {
+                trainers.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws LibrecException {
+                        component.invoke("trainModel");
+                        return null;
+                    }
+                });
+            }
+            if (trainers.isEmpty()) {
+                return;
+            }
 
-        // train each model, which was made a public method in both files
-        NBRec.trainModel();
-        UKRec.trainModel();
+            ExecutorService executor = Executors.newFixedThreadPool(trainers.size());
+            try {
+                for (Future<Void> trained : executor.invokeAll(trainers)) {
+                    trained.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LibrecException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof LibrecException ? (LibrecException) e.getCause() : new LibrecException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            phase.stop();
+        }
+    }
 
+    /**
+     * Add a batch of new or changed ratings to every component. The shared
+     * training cache takes the ratings once, then components reading it only
+     * refresh the affected users and the others get the batch themselves.
+     *
+     * @param userIdxs user index of every rating
+     * @param itemIdxs item index of every rating
+     * @param ratings  ratings
+     * @param count    number of ratings in the batch
+     * @throws LibrecException if a component cannot be updated
+     */
+    @Override
+    public void update(int[] userIdxs, int[] itemIdxs, double[] ratings, int count) throws LibrecException {
+        for (Component component : components) {
+            if (!(component.recommender instanceof TrainingCacheAware)
+                    && !(component.recommender instanceof IncrementalRecommender)) {
+                throw new LibrecException("Hybrid component " + component.recommender.getClass().getName() + " cannot be updated");
+            }
+        }
+        int[] affected;
+        try {
+            affected = trainingCache.addRatings(userIdxs, itemIdxs, ratings, count);
+        } catch (IllegalArgumentException e) {
+            throw new LibrecException(e);
+        }
+        for (Component component : components) {
+            if (component.recommender instanceof TrainingCacheAware) {
+                ((TrainingCacheAware) component.recommender).refreshUsers(affected);
+            } else {
+                ((IncrementalRecommender) component.recommender).update(userIdxs, itemIdxs, ratings, count);
+            }
+        }
     }
 
     public double predict (int user, int item) throws LibrecException {
+        LatencyHistogram latency = predictLatency;
+        if (latency == null) {
+            return estimate(user, item);
+        }
+        long start = System.nanoTime();
+        double rating = estimate(user, item);
+        latency.record(System.nanoTime() - start);
+        return rating;
+    }
 
-        // get weights for making hybrid prediction
-        weight_nb = conf.getDouble("weight.nb");
-        weight_cf = conf.getDouble("weight.cf");
+    private double estimate(int user, int item) throws LibrecException {
 
-        // call predict and make the aggregated prediction
-        double NBpred = NBRec.predict(user, item);
-        double UKpred = UKRec.predict(user, item);
-        double agg = (weight_nb * NBpred) + (weight_cf * UKpred);
+        // call predict and make the aggregated prediction,
+        // skipping any model whose weight is zero
+        double agg = 0;
+        for (Component component : components) {
+            if (component.weight != 0) {
+                agg += component.weight * component.predict(user, item);
+            }
+        }
 
-        // return the results
-        //System.out.println(agg);
         return agg;
+    }
+
+    /**
+     * Score several candidate items for one user: every component scores all
+     * candidates with one call, and the score arrays are fused in one pass.
+     *
+     * @param user       user index
+     * @param candidates candidate item indices
+     * @param count      number of candidates
+     * @param scores     output scores, parallel to candidates
+     * @throws LibrecException if a component fails
+     */
+    public void predict (int user, int[] candidates, int count, double[] scores) throws LibrecException {
+        double[] componentScores = new double[count];
+        for (int n = 0; n < count; n++) {
+            scores[n] = 0;
+        }
+        for (Component component : components) {
+            if (component.weight == 0) {
+                continue;
+            }
+            component.predict(user, candidates, count, componentScores);
+            double weight = component.weight;
+            for (int n = 0; n < count; n++) {
+                scores[n] += weight * componentScores[n];
+            }
+        }
+    }
+
+    /**
+     * (non-Javadoc)
+     *
+     * @see net.librec.recommender.AbstractRecommender#recommendRank()
+     *
+     * Scores the unrated items of every user with one batch call.
+     */
+    @Override
+    protected RecommendedList recommendRank() throws LibrecException {
+        RecommendedItemList recommendedItemList = new RecommendedItemList(numUsers - 1, numUsers);
+        int[] candidates = new int[numItems];
+        double[] scores = new double[numItems];
+        for (int user = 0; user < numUsers; ++user) {
+            int[] ratedItems = trainingCache.userRow(user).items;
+            int count = 0;
+            int r = 0;
+            for (int item = 0; item < numItems; item++) {
+                if (r < ratedItems.length && ratedItems[r] == item) {
+                    r++;
+                    continue;
+                }
+                candidates[count++] = item;
+            }
+            predict(user, candidates, count, scores);
+            for (int n = 0; n < count; n++) {
+                if (!Double.isNaN(scores[n])) {
+                    recommendedItemList.addUserItemIdx(user, candidates[n], scores[n]);
+                }
+            }
+            recommendedItemList.topNRankByIndex(user, topN);
+        }
+        if (recommendedItemList.size() == 0) {
+            throw new IndexOutOfBoundsException("No item is recommended, there is something error in the recommendation algorithm! Please check it!");
+        }
+        recommendedList = recommendedItemList;
+        return recommendedList;
+    }
+
+    /**
+     * A component rec with its weight. setup, trainModel and predict are
+     * protected in AbstractRecommender, so recs that do not make them public
+     * are called through reflection.
+     */
+    static class Component {
+        final AbstractRecommender recommender;
+        final double weight;
+        final BatchScorer batchScorer;
+        final Method predictMethod;
+
+        Component(String className, double weight) throws LibrecException {
+            try {
+                this.recommender = (AbstractRecommender) Class.forName(className).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new LibrecException("Cannot create hybrid component " + className, e);
+            }
+            this.weight = weight;
+            this.batchScorer = recommender instanceof BatchScorer ? (BatchScorer) recommender : null;
+            this.predictMethod = batchScorer == null ? findMethod("predict", int.class, int.class) : null;
+        }
+
+        private Method findMethod(String name, Class<?>... parameterTypes) throws LibrecException {
+            for (Class<?> type = recommender.getClass(); type != null; type = type.getSuperclass()) {
+                try {
+                    Method method = type.getDeclaredMethod(name, parameterTypes);
+                    method.setAccessible(true);
+                    return method;
+                } catch (NoSuchMethodException e) {
+                    // look in the super class
+                }
+            }
+            throw new LibrecException("No method " + name + " in hybrid component " + recommender.getClass().getName());
+        }
+
+        private Object invoke(Method method, Object... args) throws LibrecException {
+            try {
+                return method.invoke(recommender, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof LibrecException ? (LibrecException) e.getCause() : new LibrecException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new LibrecException(e);
+            }
+        }
+
+        void invoke(String name) throws LibrecException {
+            invoke(findMethod(name));
+        }
+
+        double predict(int user, int item) throws LibrecException {
+            if (batchScorer != null) {
+                return batchScorer.predict(user, item);
+            }
+            return (Double) invoke(predictMethod, user, item);
+        }
 
+        void predict(int user, int[] candidates, int count, double[] scores) throws LibrecException {
+            if (batchScorer != null) {
+                batchScorer.predict(user, candidates, count, scores);
+                return;
+            }
+            for (int n = 0; n < count; n++) {
+                scores[n] = predict(user, candidates[n]);
+            }
+        }
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,215 @@
+package net.librec.recommender;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming loader for content files with one item per line, given as the
+ * item id followed by its feature ids, separated by spaces, tabs or commas.
+ * <p>
+ * The file is tokenized byte by byte while it is read (or mapped) in chunks.
+ * The tokenizer keeps its state between chunks, so a line split across two
+ * chunks is carried over without re-reading anything, and both \n and \r
+ * end a line whatever the platform. The (item, feature) pairs go straight
+ * into primitive arrays and are compressed into an {@link ItemFeatureMatrix}.
+ */
+public class ItemFeatureLoader {
+
+    private static final int BSIZE = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // matrices handed out by loadShared, by canonical path
+    private static final Map<String, Shared> SHARED = new HashMap<String, Shared>();
+
+    private static class Shared {
+        final long lastModified;
+        final long length;
+        final ItemFeatureMatrix matrix;
+
+        Shared(long lastModified, long length, ItemFeatureMatrix matrix) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.matrix = matrix;
+        }
+    }
+
+    private final Map<String, Integer> itemIds = new HashMap<String, Integer>();
+    private final Map<String, Integer> featureIds = new HashMap<String, Integer>();
+
+    // current token, grown when a token is longer
+    private byte[] token = new byte[64];
+    private int tokenLength;
+    // row of the current line, -1 until its item id is read
+    private int row = -1;
+
+    // (item, feature) pairs in file order
+    private int[] pairRows = new int[1024];
+    private int[] pairCols = new int[1024];
+    private int numPairs;
+
+    /**
+     * Load a content file once per process. The matrix is never modified by
+     * its readers, so every recommender asking for the same unchanged file,
+     * such as the folds of a cross validation, gets the same instance.
+     *
+     * @param contentPath path of the content file
+     * @param mapped      map the file into memory instead of reading it
+     * @return the item-feature matrix
+     * @throws IOException if the file cannot be read
+     */
+    public static ItemFeatureMatrix loadShared(String contentPath, boolean mapped) throws IOException {
+        File file = new File(contentPath).getCanonicalFile();
+        synchronized (SHARED) {
+            Shared shared = SHARED.get(file.getPath());
+            if (shared == null || shared.lastModified != file.lastModified() || shared.length != file.length()) {
+                shared = new Shared(file.lastModified(), file.length(), load(contentPath, mapped));
+                SHARED.put(file.getPath(), shared);
+            }
+            return shared.matrix;
+        }
+    }
+
+    /**
+     * Forget the matrices handed out by {@link #loadShared}, so the next call
+     * reads its file again. Used by benchmarks that measure the loading.
+     */
+    public static void clearShared() {
+        synchronized (SHARED) {
+            SHARED.clear();
+        }
+    }
+
+    /**
+     * Load a content file.
+     *
+     * @param contentPath path of the content file
+     * @param mapped      map the file into memory instead of reading it
+     * @return the item-feature matrix, items and features are numbered in
+     * order of first appearance
+     * @throws IOException if the file cannot be read
+     */
+    public static ItemFeatureMatrix load(String contentPath, boolean mapped) throws IOException {
+        ItemFeatureLoader loader = new ItemFeatureLoader();
+        FileInputStream fileInputStream = new FileInputStream(contentPath);
+        try {
+            FileChannel fileRead = fileInputStream.getChannel();
+            if (mapped) {
+                long size = fileRead.size();
+                for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                    MappedByteBuffer buffer = fileRead.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(Integer.MAX_VALUE, size - position));
+                    loader.consume(buffer);
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BSIZE);
+                while (fileRead.read(buffer) != -1) {
+                    buffer.flip();
+                    loader.consume(buffer);
+                    buffer.clear();
+                }
+            }
+        } finally {
+            fileInputStream.close();
+        }
+        loader.endLine();
+        return loader.toMatrix();
+    }
+
+    private void consume(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n' || b == '\r') {
+                endLine();
+            } else if ((b >= 0 && b <= ' ') || b == ',') {
+                endToken();
+            } else {
+                if (tokenLength == token.length) {
+                    token = Arrays.copyOf(token, 2 * tokenLength);
+                }
+                token[tokenLength++] = b;
+            }
+        }
+    }
+
+    private void endLine() {
+        endToken();
+        row = -1;
+    }
+
+    private void endToken() {
+        if (tokenLength == 0) {
+            return;
+        }
+        String id = new String(token, 0, tokenLength, UTF8);
+        tokenLength = 0;
+
+        if (row < 0) {
+            // inner id starting from 0
+            row = idOf(itemIds, id);
+            return;
+        }
+        int col = idOf(featureIds, id);
+        if (numPairs == pairRows.length) {
+            pairRows = Arrays.copyOf(pairRows, 2 * numPairs);
+            pairCols = Arrays.copyOf(pairCols, 2 * numPairs);
+        }
+        pairRows[numPairs] = row;
+        pairCols[numPairs] = col;
+        numPairs++;
+    }
+
+    private static int idOf(Map<String, Integer> ids, String id) {
+        Integer inner = ids.get(id);
+        if (inner == null) {
+            inner = ids.size();
+            ids.put(id, inner);
+        }
+        return inner;
+    }
+
+    /**
+     * Bucket the pairs by item, then sort and de-duplicate each row, since an
+     * item may list a feature twice or appear on several lines.
+     */
+    private ItemFeatureMatrix toMatrix() {
+        int numItems = itemIds.size();
+        int[] rowPtr = new int[numItems + 1];
+        for (int n = 0; n < numPairs; n++) {
+            rowPtr[pairRows[n] + 1]++;
+        }
+        for (int i = 0; i < numItems; i++) {
+            rowPtr[i + 1] += rowPtr[i];
+        }
+        int[] next = Arrays.copyOf(rowPtr, numItems);
+        int[] featureInd = new int[numPairs];
+        for (int n = 0; n < numPairs; n++) {
+            featureInd[next[pairRows[n]]++] = pairCols[n];
+        }
+
+        int size = 0;
+        int start = 0;
+        for (int i = 0; i < numItems; i++) {
+            int end = rowPtr[i + 1];
+            Arrays.sort(featureInd, start, end);
+            rowPtr[i] = size;
+            for (int n = start; n < end; n++) {
+                if (n == start || featureInd[n] != featureInd[n - 1]) {
+                    featureInd[size++] = featureInd[n];
+                }
+            }
+            start = end;
+        }
+        rowPtr[numItems] = size;
+
+        return new ItemFeatureMatrix(numItems, featureIds.size(), rowPtr, Arrays.copyOf(featureInd, size));
+    }
+}
@@ -0,0 +1,45 @@
+package net.librec.recommender;
+
+
+/**
+ * Binary item-feature matrix in compressed row storage: the features of
+ * item {@code i} are {@code featureIndices()[rowPointers()[i] .. rowPointers()[i + 1])},
+ * sorted in ascending order.
+ */
+public class ItemFeatureMatrix {
+
+    private final int numItems;
+    private final int numFeatures;
+    private final int[] rowPtr;
+    private final int[] featureInd;
+
+    public ItemFeatureMatrix(int numItems, int numFeatures, int[] rowPtr, int[] featureInd) {
+        this.numItems = numItems;
+        this.numFeatures = numFeatures;
+        this.rowPtr = rowPtr;
+        this.featureInd = featureInd;
+    }
+
+    public int numItems() {
+        return numItems;
+    }
+
+    public int numFeatures() {
+        return numFeatures;
+    }
+
+    // row pointers, of length numItems + 1
+    public int[] rowPointers() {
+        return rowPtr;
+    }
+
+    // feature indices of all items, row after row
+    public int[] featureIndices() {
+        return featureInd;
+    }
+
+    // number of (item, feature) pairs
+    public int size() {
+        return rowPtr[numItems];
+    }
+}
@@ -0,0 +1,350 @@
+package net.librec.recommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.Buffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the trained state of a recommender, written as flat
+ * primitive sections and read back through a memory-mapped file, so a
+ * scoring process can load a model instead of training it.
+ * <p>
+ * The file starts with a header (magic, format version, model class name,
+ * number of sections). Every section is a name, an element type, an element
+ * count and the little endian elements, padded to 8 bytes so each section
+ * starts aligned. Ragged arrays are stored as a pointer section and a value
+ * section, like a CSR matrix.
+ */
+public class ModelSnapshot {
+
+    /**
+     * "LRSN"
+     */
+    public static final int MAGIC = 0x4C52534E;
+    public static final int VERSION = 1;
+
+    private static final byte INT = 1;
+    private static final byte FLOAT = 2;
+    private static final byte DOUBLE = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String modelName;
+    // section name to int[], float[] or double[] when writing, or to a
+    // little endian view of the mapped section when reading
+    private final Map<String, Object> sections = new LinkedHashMap<String, Object>();
+
+    /**
+     * Start an empty snapshot for writing.
+     *
+     * @param modelName name of the model class, checked when loading
+     */
+    public ModelSnapshot(String modelName) {
+        this.modelName = modelName;
+    }
+
+    /**
+     * @param dir  snapshot directory
+     * @param type recommender class
+     * @return the snapshot file of the recommender in the directory
+     */
+    public static File file(String dir, Class<?> type) {
+        return new File(dir.trim(), type.getSimpleName() + ".snapshot");
+    }
+
+    /**
+     * @return the name of the model class
+     */
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * @param name   section name
+     * @param values section values
+     */
+    public void put(String name, int[] values) {
+        sections.put(name, values);
+    }
+
+    /**
+     * @param name   section name
+     * @param values section values
+     */
+    public void put(String name, float[] values) {
+        sections.put(name, values);
+    }
+
+    /**
+     * @param name   section name
+     * @param values section values
+     */
+    public void put(String name, double[] values) {
+        sections.put(name, values);
+    }
+
+    /**
+     * Store the rows of a ragged array as name.pointers and name.values.
+     *
+     * @param name   section name
+     * @param values rows
+     */
+    public void put(String name, int[][] values) {
+        int[] pointers = pointers(values.length, values);
+        int[] flat = new int[pointers[values.length]];
+        for (int row = 0; row < values.length; row++) {
+            System.arraycopy(values[row], 0, flat, pointers[row], values[row].length);
+        }
+        put(name + ".pointers", pointers);
+        put(name + ".values", flat);
+    }
+
+    /**
+     * Store the rows of a ragged array as name.pointers and name.values.
+     *
+     * @param name   section name
+     * @param values rows
+     */
+    public void put(String name, float[][] values) {
+        int[] pointers = pointers(values.length, values);
+        float[] flat = new float[pointers[values.length]];
+        for (int row = 0; row < values.length; row++) {
+            System.arraycopy(values[row], 0, flat, pointers[row], values[row].length);
+        }
+        put(name + ".pointers", pointers);
+        put(name + ".values", flat);
+    }
+
+    private static int[] pointers(int numRows, Object[] rows) {
+        int[] pointers = new int[numRows + 1];
+        for (int row = 0; row < numRows; row++) {
+            int length = rows[row] instanceof int[] ? ((int[]) rows[row]).length : ((float[]) rows[row]).length;
+            pointers[row + 1] = pointers[row] + length;
+        }
+        return pointers;
+    }
+
+    /**
+     * Write the snapshot, replacing the file if it exists.
+     *
+     * @param file snapshot file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File file) throws IOException {
+        byte[] model = modelName.getBytes(UTF8);
+        long size = align(16 + model.length);
+        for (Map.Entry<String, Object> section : sections.entrySet()) {
+            size += align(4 + section.getKey().getBytes(UTF8).length + 1) + 8 + align(byteSize(section.getValue()));
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("model snapshot too large to map: " + size + " bytes");
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create directory " + parent);
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(size);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(sections.size());
+            buffer.putInt(model.length);
+            buffer.put(model);
+            pad(buffer);
+            for (Map.Entry<String, Object> section : sections.entrySet()) {
+                byte[] name = section.getKey().getBytes(UTF8);
+                Object values = section.getValue();
+                buffer.putInt(name.length);
+                buffer.put(name);
+                if (values instanceof int[]) {
+                    buffer.put(INT);
+                    pad(buffer);
+                    buffer.putLong(((int[]) values).length);
+                    buffer.asIntBuffer().put((int[]) values);
+                } else if (values instanceof float[]) {
+                    buffer.put(FLOAT);
+                    pad(buffer);
+                    buffer.putLong(((float[]) values).length);
+                    buffer.asFloatBuffer().put((float[]) values);
+                } else {
+                    buffer.put(DOUBLE);
+                    pad(buffer);
+                    buffer.putLong(((double[]) values).length);
+                    buffer.asDoubleBuffer().put((double[]) values);
+                }
+                buffer.position((int) (buffer.position() + align(byteSize(values))));
+            }
+            buffer.force();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Map a snapshot file and index its sections. The sections are views of
+     * the mapping, nothing is copied until an array is asked for.
+     *
+     * @param file      snapshot file
+     * @param modelName expected name of the model class
+     * @return the snapshot
+     * @throws IOException if the file is not a snapshot of that model in this format version
+     */
+    public static ModelSnapshot map(File file, String modelName) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 16 || buffer.getInt() != MAGIC) {
+            throw new IOException(file + " is not a model snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + " has snapshot version " + version + ", expected " + VERSION);
+        }
+        int numSections = buffer.getInt();
+        String fileModel = readString(buffer);
+        pad(buffer);
+        if (!fileModel.equals(modelName)) {
+            throw new IOException(file + " is a snapshot of " + fileModel + ", not of " + modelName);
+        }
+
+        ModelSnapshot snapshot = new ModelSnapshot(modelName);
+        for (int n = 0; n < numSections; n++) {
+            String name = readString(buffer);
+            byte type = buffer.get();
+            pad(buffer);
+            int count = (int) buffer.getLong();
+            ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            Object view;
+            if (type == INT) {
+                view = data.asIntBuffer().limit(count);
+            } else if (type == FLOAT) {
+                view = data.asFloatBuffer().limit(count);
+            } else if (type == DOUBLE) {
+                view = data.asDoubleBuffer().limit(count);
+            } else {
+                throw new IOException(file + " has section " + name + " of unknown type " + type);
+            }
+            snapshot.sections.put(name, view);
+            buffer.position((int) (buffer.position() + align((long) count * (type == DOUBLE ? 8 : 4))));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param name section name
+     * @return a copy of an int section
+     * @throws IOException if there is no such int section
+     */
+    public int[] getInts(String name) throws IOException {
+        IntBuffer view = ((IntBuffer) section(name, IntBuffer.class)).duplicate();
+        int[] values = new int[view.remaining()];
+        view.get(values);
+        return values;
+    }
+
+    /**
+     * @param name section name
+     * @return a copy of a float section
+     * @throws IOException if there is no such float section
+     */
+    public float[] getFloats(String name) throws IOException {
+        FloatBuffer view = ((FloatBuffer) section(name, FloatBuffer.class)).duplicate();
+        float[] values = new float[view.remaining()];
+        view.get(values);
+        return values;
+    }
+
+    /**
+     * @param name section name
+     * @return a copy of a double section
+     * @throws IOException if there is no such double section
+     */
+    public double[] getDoubles(String name) throws IOException {
+        DoubleBuffer view = ((DoubleBuffer) section(name, DoubleBuffer.class)).duplicate();
+        double[] values = new double[view.remaining()];
+        view.get(values);
+        return values;
+    }
+
+    /**
+     * @param name section name of a ragged array
+     * @return the rows of the array
+     * @throws IOException if the sections are missing
+     */
+    public int[][] getIntRows(String name) throws IOException {
+        int[] pointers = getInts(name + ".pointers");
+        int[] flat = getInts(name + ".values");
+        int[][] rows = new int[pointers.length - 1][];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = Arrays.copyOfRange(flat, pointers[row], pointers[row + 1]);
+        }
+        return rows;
+    }
+
+    /**
+     * @param name section name of a ragged array
+     * @return the rows of the array
+     * @throws IOException if the sections are missing
+     */
+    public float[][] getFloatRows(String name) throws IOException {
+        int[] pointers = getInts(name + ".pointers");
+        float[] flat = getFloats(name + ".values");
+        float[][] rows = new float[pointers.length - 1][];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = Arrays.copyOfRange(flat, pointers[row], pointers[row + 1]);
+        }
+        return rows;
+    }
+
+    private Buffer section(String name, Class<? extends Buffer> type) throws IOException {
+        Object view = sections.get(name);
+        if (!type.isInstance(view)) {
+            throw new IOException("model snapshot of " + modelName + " has no " + type.getSimpleName() + " section " + name);
+        }
+        return (Buffer) view;
+    }
+
+    private static long byteSize(Object values) {
+        if (values instanceof int[]) {
+            return 4L * ((int[]) values).length;
+        } else if (values instanceof float[]) {
+            return 4L * ((float[]) values).length;
+        }
+        return 8L * ((double[]) values).length;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static void pad(ByteBuffer buffer) {
+        buffer.position((int) align(buffer.position()));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -2,232 +2,463 @@ package net.librec.recommender;
 
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import com.google.common.collect.*;
 import net.librec.annotation.ModelData;
 import net.librec.common.LibrecException;
 import net.librec.math.structure.*;
 
 
 @ModelData({"isRanking", "trainMatrix"})
-public class NaiveBayesRecommender extends AbstractRecommender {
+public class NaiveBayesRecommender extends AbstractRecommender implements BatchScorer, TrainingCacheAware, IncrementalRecommender {
 
-    private static final int BSIZE = 1024 * 1024;
-
-    protected SparseMatrix m_featureMatrix;
+    protected ItemFeatureMatrix m_featureMatrix;
     protected double m_threshold;
-    protected DenseMatrix probFeatureLike;
-    protected DenseMatrix probFeatureDislike;
     protected double[] probLikeMatrix;
     protected double[] probDislikeMatrix;
 
+    // number of liked and disliked items of each user
+    protected int[] itemsLikeCount;
+    protected int[] itemsDislikeCount;
+
+    // the feature counts and scales of each user, replaced as a whole by
+    // refreshUsers so a concurrent predict never mixes two versions
+    private AtomicReferenceArray<UserCounts> userCounts;
+
+    // per thread buffers the batch scoring scatters a users counts into
+    private ThreadLocal<int[][]> featureCountBuffers;
+
+    // shared views of the train matrix, built here unless a hybrid set them
+    protected TrainingCache trainingCache;
+
+    // predict latencies, only recorded with rec.metrics.latency
+    private LatencyHistogram predictLatency;
+
+    /**
+     * What predict needs of one user.
+     */
+    private static final class UserCounts {
+        // features seen by the user (sorted), with how often they were
+        // seen on liked and on disliked items. features a user never saw
+        // are not stored, their smoothed probability is derived in predict
+        final int[] features;
+        final int[] likes;
+        final int[] dislikes;
+        // prob like / (liked items + 1) and prob dislike / (disliked items + 1),
+        // which scale the summed feature counts of an item
+        final double likeScale;
+        final double dislikeScale;
+
+        UserCounts(int[] features, int[] likes, int[] dislikes, double likeScale, double dislikeScale) {
+            this.features = features;
+            this.likes = likes;
+            this.dislikes = dislikes;
+            this.likeScale = likeScale;
+            this.dislikeScale = dislikeScale;
+        }
+    }
+
     @Override
     public void setup() throws LibrecException {
-        // out of mercy this method was given
-        super.setup();
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "setup");
+        try {
+            // out of mercy this method was given
+            super.setup();
+            predictLatency = conf.getBoolean("rec.metrics.latency", false)
+                    ? RecommenderMetrics.get().latency(getClass().getSimpleName()) : null;
+
+            // we use this to set the threshold of what is a liked
+            m_threshold = conf.getDouble("rec.rating.threshold");
+
+            String contentPath = conf.get("dfs.content.path");
+            boolean mapped = conf.getBoolean("dfs.content.mmap", false);
+
+            try {
+                // the features do not depend on the split, so every fold of a
+                // cross validation reads the same matrix
+                m_featureMatrix = ItemFeatureLoader.loadShared(contentPath, mapped);
+            } catch (IOException e) {
+                LOG.error("Error reading file: " + contentPath + e);
+                throw (new LibrecException(e));
+            }
 
-        // we use this to set the threshold of what is a liked
-        m_threshold = conf.getDouble("rec.rating.threshold");
+            LOG.info("Loaded item features from " + contentPath);
+        } finally {
+            phase.stop();
+        }
+    }
 
-        String contentPath = conf.get("dfs.content.path");
-        Table<Integer, Integer, Integer> contentTable = HashBasedTable.create();
-        HashBiMap<String, Integer> itemIds = HashBiMap.create();
-        HashBiMap<String, Integer> featureIds = HashBiMap.create();
+    @Override
+    public void setTrainingCache(TrainingCache trainingCache) {
+        this.trainingCache = trainingCache;
+    }
 
+    public void trainModel() throws LibrecException {
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "trainModel");
         try {
+            // number of users and features
+            int numUsers = trainMatrix.numRows();
+            final int numFeatures = m_featureMatrix.numFeatures();
+
+            // store the prob_like
+            // store the prob_dislike
+            probLikeMatrix = new double[numUsers];
+            probDislikeMatrix = new double[numUsers];
+
+            // store the observed counts of each user
+            itemsLikeCount = new int[numUsers];
+            itemsDislikeCount = new int[numUsers];
+            userCounts = new AtomicReferenceArray<UserCounts>(numUsers);
+            featureCountBuffers = createFeatureCountBuffers(numFeatures);
+
+            // every user is counted on its own, so the users
+            // can be split across threads
+            int numThreads = conf.getInt("rec.nb.train.threads", 1);
+            if (trainingCache == null) {
+                trainingCache = new TrainingCache(trainMatrix, globalMean, numThreads);
+            }
 
-            FileInputStream fileInputStream = new FileInputStream(contentPath);
-            FileChannel fileRead = fileInputStream.getChannel();
-            ByteBuffer buffer = ByteBuffer.allocate(BSIZE);
-            int len;
-            String bufferLine = new String();
-            byte[] bytes = new byte[BSIZE];
-            while ((len = fileRead.read(buffer)) != -1) {
-                buffer.flip();
-                buffer.get(bytes, 0, len);
-                bufferLine = bufferLine.concat(new String(bytes, 0, len));
-                String[] bufferData = bufferLine.split(System.getProperty("line.separator") + "+");
-                boolean isComplete = bufferLine.endsWith(System.getProperty("line.separator"));
-                int loopLength = isComplete ? bufferData.length : bufferData.length - 1;
-                for (int i = 0; i < loopLength; i++) {
-                    String line = new String(bufferData[i]);
-                    String[] data = line.trim().split("[ \t,]+");
-
-                    String item = data[0];
-                    // inner id starting from 0
-                    int row = itemIds.containsKey(item) ? itemIds.get(item) : itemIds.size();
-                    itemIds.put(item, row);
-
-                    for (int j = 1; j < data.length; j++) {
-                        String feature = data[j];
-                        int col = featureIds.containsKey(feature) ? featureIds.get(feature) : featureIds.size();
-                        featureIds.put(feature, col);
-
-                        contentTable.put(row, col, 1);
+            // with rec.model.snapshot.load the counts are mapped from a
+            // snapshot written by an earlier run
+            String loadDir = conf.get("rec.model.snapshot.load");
+            if (loadDir != null && !loadDir.trim().isEmpty()) {
+                loadModel(ModelSnapshot.file(loadDir, getClass()));
+                return;
+            }
+            final TrainingCache rows = trainingCache;
+            ParallelUserLoop.run(numUsers, numThreads, new ParallelUserLoop.Body() {
+                @Override
+                public void run(int from, int to) {
+                    // likes and dislikes for each feature, and the features
+                    // touched by the current user so only those are reset
+                    int[] featuresLikes = new int[numFeatures];
+                    int[] featuresDislike = new int[numFeatures];
+                    int[] touched = new int[numFeatures];
+                    for (int u = from; u < to; u++) {
+                        TrainingCache.UserRow row = rows.userRow(u);
+                        trainUser(u, row.items, row.ratings, featuresLikes, featuresDislike, touched);
                     }
-
                 }
+            });
+
+            String saveDir = conf.get("rec.model.snapshot.save");
+            if (saveDir != null && !saveDir.trim().isEmpty()) {
+                saveModel(ModelSnapshot.file(saveDir, getClass()));
             }
-        } catch (IOException e) {
-            LOG.error("Error reading file: " + contentPath + e);
-            throw (new LibrecException(e));
+        } finally {
+            phase.stop();
         }
-
-        m_featureMatrix = new SparseMatrix(itemIds.size(), featureIds.size(), contentTable);
-        LOG.info("Loaded item features from " + contentPath);
     }
 
-    public void trainModel() throws LibrecException {
-
-        // number of users and features
-        int numUsers = trainMatrix.numRows();
-        int numFeatures = m_featureMatrix.numColumns();
-
-        // store the prob_like
-        // store the prob_dislike
-        probLikeMatrix = new double[numUsers];
-        probDislikeMatrix = new double[numUsers];
-
-        // store the probability of feature given like
-        // store the probability of feature given dislike
-        probFeatureLike = new DenseMatrix(numUsers, numFeatures);
-        probFeatureDislike = new DenseMatrix(numUsers, numFeatures);
-
-        // these are used to say if the user liked
-        // or disliked the items
-        int itemsLikes;
-        int itemsDislike;
+    private static ThreadLocal<int[][]> createFeatureCountBuffers(final int numFeatures) {
+        return new ThreadLocal<int[][]>() {
+            @Override
+            protected int[][] initialValue() {
+                return new int[2][numFeatures];
+            }
+        };
+    }
 
+    /**
+     * Write the probabilities and counts of every user to a model snapshot.
+     *
+     * @param file snapshot file
+     * @throws LibrecException if the file cannot be written
+     */
+    public void saveModel(File file) throws LibrecException {
+        int numUsers = userCounts.length();
+        int[][] userFeatures = new int[numUsers][];
+        int[][] featureLikeCount = new int[numUsers][];
+        int[][] featureDislikeCount = new int[numUsers][];
+        double[] likeScale = new double[numUsers];
+        double[] dislikeScale = new double[numUsers];
         for (int u = 0; u < numUsers; u++) {
+            UserCounts counts = userCounts.get(u);
+            userFeatures[u] = counts.features;
+            featureLikeCount[u] = counts.likes;
+            featureDislikeCount[u] = counts.dislikes;
+            likeScale[u] = counts.likeScale;
+            dislikeScale[u] = counts.dislikeScale;
+        }
+        ModelSnapshot snapshot = new ModelSnapshot(getClass().getName());
+        snapshot.put("numFeatures", new int[]{m_featureMatrix.numFeatures()});
+        snapshot.put("probLikeMatrix", probLikeMatrix);
+        snapshot.put("probDislikeMatrix", probDislikeMatrix);
+        snapshot.put("itemsLikeCount", itemsLikeCount);
+        snapshot.put("itemsDislikeCount", itemsDislikeCount);
+        snapshot.put("likeScale", likeScale);
+        snapshot.put("dislikeScale", dislikeScale);
+        snapshot.put("userFeatures", userFeatures);
+        snapshot.put("featureLikeCount", featureLikeCount);
+        snapshot.put("featureDislikeCount", featureDislikeCount);
+        try {
+            snapshot.write(file);
+        } catch (IOException e) {
+            throw new LibrecException("Cannot write model snapshot " + file, e);
+        }
+        LOG.info("Saved model snapshot " + file);
+    }
 
-            // initialize like and dislike counter to 0
-            itemsLikes = 0;
-            itemsDislike = 0;
-
-            // likes and dislikes for each feature
-            int[] featuresLikes = new int[numFeatures];
-            int[] featuresDislike = new int[numFeatures];
+    /**
+     * Read the probabilities and counts of every user from a model snapshot
+     * instead of counting them. The item features still come from
+     * dfs.content.path, which must be the file the snapshot was trained with.
+     *
+     * @param file snapshot file
+     * @throws LibrecException if the file is no snapshot of this model or does not fit the data
+     */
+    public void loadModel(File file) throws LibrecException {
+        try {
+            ModelSnapshot snapshot = ModelSnapshot.map(file, getClass().getName());
+            int numFeatures = snapshot.getInts("numFeatures")[0];
+            double[] probLike = snapshot.getDoubles("probLikeMatrix");
+            if (numFeatures != m_featureMatrix.numFeatures() || probLike.length != trainMatrix.numRows()) {
+                throw new LibrecException("Model snapshot " + file + " does not fit the users and item features");
+            }
+            probLikeMatrix = probLike;
+            probDislikeMatrix = snapshot.getDoubles("probDislikeMatrix");
+            itemsLikeCount = snapshot.getInts("itemsLikeCount");
+            itemsDislikeCount = snapshot.getInts("itemsDislikeCount");
+            double[] likeScale = snapshot.getDoubles("likeScale");
+            double[] dislikeScale = snapshot.getDoubles("dislikeScale");
+            int[][] userFeatures = snapshot.getIntRows("userFeatures");
+            int[][] featureLikeCount = snapshot.getIntRows("featureLikeCount");
+            int[][] featureDislikeCount = snapshot.getIntRows("featureDislikeCount");
+            userCounts = new AtomicReferenceArray<UserCounts>(probLike.length);
+            for (int u = 0; u < probLike.length; u++) {
+                userCounts.set(u, new UserCounts(userFeatures[u], featureLikeCount[u], featureDislikeCount[u],
+                        likeScale[u], dislikeScale[u]));
+            }
+            featureCountBuffers = createFeatureCountBuffers(numFeatures);
+        } catch (IOException e) {
+            throw new LibrecException("Cannot read model snapshot " + file, e);
+        }
+        LOG.info("Loaded model snapshot " + file);
+    }
 
-            // initialize the hashmaps to 0
-            Arrays.fill(featuresLikes, new Integer(0));
-            Arrays.fill(featuresDislike, new Integer(0));
+    @Override
+    public void update(int[] userIdxs, int[] itemIdxs, double[] ratings, int count) throws LibrecException {
+        if (trainingCache == null) {
+            throw new LibrecException("NaiveBayesRecommender must be trained before it can be updated");
+        }
+        int[] affected;
+        try {
+            affected = trainingCache.addRatings(userIdxs, itemIdxs, ratings, count);
+        } catch (IllegalArgumentException e) {
+            throw new LibrecException(e);
+        }
+        refreshUsers(affected);
+    }
 
-            // gather the list of features for each item
-            SparseVector itemVector = trainMatrix.row(u);
-            Iterator<VectorEntry> item_ir = itemVector.iterator();
+    /**
+     * Count the likes and dislikes of the affected users again from their
+     * updated rows, which only costs the features of their rated items.
+     *
+     * @param userIdxs users whose ratings changed, in ascending order
+     */
+    @Override
+    public synchronized void refreshUsers(int[] userIdxs) {
+        int numFeatures = m_featureMatrix.numFeatures();
+        int[] featuresLikes = new int[numFeatures];
+        int[] featuresDislike = new int[numFeatures];
+        int[] touched = new int[numFeatures];
+        for (int u : userIdxs) {
+            TrainingCache.UserRow row = trainingCache.userRow(u);
+            trainUser(u, row.items, row.ratings, featuresLikes, featuresDislike, touched);
+        }
+    }
 
-            while (item_ir.hasNext()) {
+    /**
+     * Count the likes and dislikes of one user over the rated items and keep
+     * the counts of the features the user has seen.
+     *
+     * @param u               user index
+     * @param items           items rated by the user
+     * @param ratings         ratings of the user, parallel to items
+     * @param featuresLikes   buffer for the feature like counts, all zero
+     * @param featuresDislike buffer for the feature dislike counts, all zero
+     * @param touched         buffer for the features seen by the user
+     */
+    private void trainUser(int u, int[] items, double[] ratings, int[] featuresLikes, int[] featuresDislike, int[] touched) {
 
-                VectorEntry ratingEntry = item_ir.next();
-                double rating = ratingEntry.get();
-                int item = ratingEntry.index();
+        // these are used to say if the user liked
+        // or disliked the items
+        int itemsLikes = 0;
+        int itemsDislike = 0;
+        int numTouched = 0;
 
-                // see if the item was liked or disliked and
-                // increment accordingly
-                if (rating > m_threshold) {
-                    itemsLikes++;
-                } else if (rating > 0) {
-                    itemsDislike++;
-                }
+        int[] featurePtr = m_featureMatrix.rowPointers();
+        int[] featureInd = m_featureMatrix.featureIndices();
 
-                // get all the features for the item
-                SparseVector featureVector = m_featureMatrix.row(item);
-                Iterator<VectorEntry> feature_ir = featureVector.iterator();
+        // users without any rating keep zero probabilities
+        if (items.length == 0) {
+            userCounts.set(u, new UserCounts(new int[0], new int[0], new int[0], 0, 0));
+            return;
+        }
 
-                // go through all the features and increment the like
-                // counters for the feature or dislike
-                while (feature_ir.hasNext()) {
+        for (int i = 0; i < items.length; i++) {
 
-                    VectorEntry featureEntry = feature_ir.next();
-                    int feature = featureEntry.index();
+            double rating = ratings[i];
+            int item = items[i];
 
-                    if (rating > m_threshold) {
-                        featuresLikes[feature]++;
-                    } else if (rating > 0) {
-                        featuresDislike[feature]++;
+            // see if the item was liked or disliked and
+            // increment accordingly, then go through all the
+            // features and increment the like or dislike counters
+            if (rating > m_threshold) {
+                itemsLikes++;
+                for (int n = featurePtr[item]; n < featurePtr[item + 1]; n++) {
+                    int feature = featureInd[n];
+                    if (featuresLikes[feature] == 0 && featuresDislike[feature] == 0) {
+                        touched[numTouched++] = feature;
                     }
+                    featuresLikes[feature]++;
                 }
-
-                // calculate the probability of like and dislike for the user
-                double total_ratings = itemsLikes + itemsDislike;
-                double prob_like = (double) (itemsLikes + 1) / (total_ratings + 2);
-                double prob_dislike = (double) (itemsDislike + 1) / (total_ratings + 2);
-
-                // add to the probability matrices
-                probLikeMatrix[u] = prob_like;
-                probDislikeMatrix[u] = prob_dislike;
-
-
-                for (int f = 0; f < numFeatures; f++) {
-
-                    // get the probabilites of the feature given like and dislike
-                    double prob_feature_like = (double) (featuresLikes[f] + 1) / (itemsLikes + 1);
-                    double prob_feature_dislike = (double) (featuresDislike[f] + 1) / (itemsDislike + 1);
-
-                    // set the values in the matrix
-                    probFeatureLike.set(u, f, prob_feature_like);
-                    probFeatureDislike.set(u, f, prob_feature_dislike);
-
+            } else if (rating > 0) {
+                itemsDislike++;
+                for (int n = featurePtr[item]; n < featurePtr[item + 1]; n++) {
+                    int feature = featureInd[n];
+                    if (featuresLikes[feature] == 0 && featuresDislike[feature] == 0) {
+                        touched[numTouched++] = feature;
+                    }
+                    featuresDislike[feature]++;
                 }
             }
         }
+
+        // calculate the probability of like and dislike for the user
+        double total_ratings = itemsLikes + itemsDislike;
+        probLikeMatrix[u] = (double) (itemsLikes + 1) / (total_ratings + 2);
+        probDislikeMatrix[u] = (double) (itemsDislike + 1) / (total_ratings + 2);
+        itemsLikeCount[u] = itemsLikes;
+        itemsDislikeCount[u] = itemsDislike;
+
+        // keep the counts of the seen features and reset the buffers
+        Arrays.sort(touched, 0, numTouched);
+        int[] features = Arrays.copyOf(touched, numTouched);
+        int[] likes = new int[numTouched];
+        int[] dislikes = new int[numTouched];
+        for (int n = 0; n < numTouched; n++) {
+            int feature = features[n];
+            likes[n] = featuresLikes[feature];
+            dislikes[n] = featuresDislike[feature];
+            featuresLikes[feature] = 0;
+            featuresDislike[feature] = 0;
+        }
+        userCounts.set(u, new UserCounts(features, likes, dislikes,
+                probLikeMatrix[u] / (itemsLikes + 1), probDislikeMatrix[u] / (itemsDislike + 1)));
     }
 
     @Override
     public double predict(int user, int item) throws LibrecException {
+        LatencyHistogram latency = predictLatency;
+        if (latency == null) {
+            return estimate(user, item);
+        }
+        long start = System.nanoTime();
+        double rating = estimate(user, item);
+        latency.record(System.nanoTime() - start);
+        return rating;
+    }
 
-        // running prob like * prob feature given like
-        // running prob dislike * prob feature given dislike
-        double run_prob_dislike = 0;
-        double run_prob_like = 0;
-
-        // get the user probability of like and dislike
-        double prob_like = probLikeMatrix[user];
-        double prob_dislike = probDislikeMatrix[user];
-
-        // get the features for the user
-        SparseVector featureVector = m_featureMatrix.row(item);
-        List<Integer> featureIndexVect = featureVector.getIndexList();
-
-        for (int feature : featureVector.getIndexList()) {
-
-            // used the calculate the k constant
-
-            // probability of feature given like
-            // probability of feature given dislike
-            double like_feature = probFeatureLike.get(user, feature);
-            double dislike_feature = probFeatureDislike.get(user, feature);
+    private double estimate(int user, int item) {
+
+        // get the observed feature counts of the user, all from one version
+        UserCounts counts = userCounts.get(user);
+        int[] features = counts.features;
+        int[] likes = counts.likes;
+        int[] dislikes = counts.dislikes;
+
+        // get the features for the item
+        int[] featurePtr = m_featureMatrix.rowPointers();
+        int[] featureInd = m_featureMatrix.featureIndices();
+
+        // with laplace smoothing every feature of the item counts once,
+        // plus the number of times the user saw it. both feature lists are
+        // sorted, so each search starts after the previous position
+        long like_sum = featurePtr[item + 1] - featurePtr[item];
+        long dislike_sum = like_sum;
+        int from = 0;
+        for (int n = featurePtr[item]; n < featurePtr[item + 1]; n++) {
+            int pos = Arrays.binarySearch(features, from, features.length, featureInd[n]);
+            if (pos >= 0) {
+                like_sum += likes[pos];
+                dislike_sum += dislikes[pos];
+                from = pos + 1;
+            } else {
+                from = -pos - 1;
+            }
+        }
 
-            // intermediate like and dislike values
-            double inter_like = like_feature * prob_like;
-            double inter_dislike = dislike_feature * prob_dislike;
+        return score(counts, like_sum, dislike_sum);
+    }
 
-            // increment totals
-            run_prob_like += inter_like;
-            run_prob_dislike += inter_dislike;
+    /**
+     * Score several candidate items for one user. The user's feature counts
+     * are scattered into dense per-thread buffers once, so every item is a
+     * plain sum over its feature indices.
+     *
+     * @param user       user index
+     * @param candidates candidate item indices
+     * @param count      number of candidates
+     * @param scores     output scores, parallel to candidates
+     */
+    @Override
+    public void predict(int user, int[] candidates, int count, double[] scores) {
+        int[][] buffers = featureCountBuffers.get();
+        int[] likeBuffer = buffers[0];
+        int[] dislikeBuffer = buffers[1];
+
+        UserCounts counts = userCounts.get(user);
+        int[] features = counts.features;
+        int[] likes = counts.likes;
+        int[] dislikes = counts.dislikes;
+        for (int n = 0; n < features.length; n++) {
+            likeBuffer[features[n]] = likes[n];
+            dislikeBuffer[features[n]] = dislikes[n];
+        }
 
+        int[] featurePtr = m_featureMatrix.rowPointers();
+        int[] featureInd = m_featureMatrix.featureIndices();
+        for (int c = 0; c < count; c++) {
+            int item = candidates[c];
+            long like_sum = featurePtr[item + 1] - featurePtr[item];
+            long dislike_sum = like_sum;
+            for (int n = featurePtr[item]; n < featurePtr[item + 1]; n++) {
+                like_sum += likeBuffer[featureInd[n]];
+                dislike_sum += dislikeBuffer[featureInd[n]];
+            }
+            scores[c] = score(counts, like_sum, dislike_sum);
         }
 
-        // calculate k
-        double k = 1/(run_prob_like + run_prob_dislike);
+        // leave the buffers zeroed for the next user
+        for (int feature : features) {
+            likeBuffer[feature] = 0;
+            dislikeBuffer[feature] = 0;
+        }
+    }
 
-        // calculate probability of like given feature
-        // calculate probability of dislike given feature
-        double prob_like_feature = k * run_prob_like;
-        double prob_dislike_feature = k * run_prob_dislike;
+    /**
+     * Turn the smoothed feature counts of an item into a rating.
+     *
+     * @param counts      feature counts and scales of the user
+     * @param like_sum    sum of (like count + 1) over the item features
+     * @param dislike_sum sum of (dislike count + 1) over the item features
+     * @return the predicted rating
+     */
+    private double score(UserCounts counts, double like_sum, double dislike_sum) {
 
-        // get the log likliehood
-        double logliklihood = Math.log(prob_like_feature / prob_dislike_feature);
+        // running prob like * prob feature given like
+        // running prob dislike * prob feature given dislike
+        double run_prob_like = counts.likeScale * like_sum;
+        double run_prob_dislike = counts.dislikeScale * dislike_sum;
 
-        // use logit to get a probability
-        double prob_like_final = Math.exp(logliklihood) / (1 + Math.exp(logliklihood));
+        // the constant k cancels out, and the logit of the log likelihood
+        // is just the share of like, so no log or exp is needed
+        double prob_like_final = run_prob_like / (run_prob_like + run_prob_dislike);
 
         // make the final prediction
         return minRate + prob_like_final * (maxRate - minRate);
 
     }
 }
-
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender;
+
+import net.librec.math.structure.SparseMatrix;
+import net.librec.math.structure.SparseVector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The columns of the train matrix as primitive arrays: for every item the
+ * users who rated it, sorted by user index, and the parallel ratings.
+ * Reading them allocates nothing, unlike {@code getRowsSet} or {@code column}.
+ * The raters and ratings of an item are kept together in one immutable
+ * {@link Column}, so a column replaced by {@link #put} is published with a
+ * single store.
+ */
+public class RatingColumns {
+
+    /**
+     * Raters and ratings of one item.
+     */
+    public static final class Column {
+        /**
+         * users who rated the item, in ascending order
+         */
+        public final int[] raters;
+        /**
+         * ratings, parallel to {@link #raters}
+         */
+        public final double[] ratings;
+
+        Column(int[] raters, double[] ratings) {
+            this.raters = raters;
+            this.ratings = ratings;
+        }
+    }
+
+    private final AtomicReferenceArray<Column> columns;
+
+    /**
+     * @param trainMatrix user-item rating matrix
+     */
+    public RatingColumns(SparseMatrix trainMatrix) {
+        int numItems = trainMatrix.numColumns();
+        columns = new AtomicReferenceArray<Column>(numItems);
+        for (int itemIdx = 0; itemIdx < numItems; itemIdx++) {
+            SparseVector itemRatingVector = trainMatrix.column(itemIdx);
+            columns.set(itemIdx, new Column(itemRatingVector.getIndex(), itemRatingVector.getData()));
+        }
+    }
+
+    /**
+     * Add or change one rating. The column is replaced by an updated copy,
+     * so arrays handed out before are never written to.
+     *
+     * @param itemIdx item index
+     * @param userIdx user index
+     * @param rating  rating of the user on the item
+     */
+    public void put(int itemIdx, int userIdx, double rating) {
+        Column column = columns.get(itemIdx);
+        int[] itemRaters = column.raters;
+        double[] itemRatings = column.ratings;
+        int pos = Arrays.binarySearch(itemRaters, userIdx);
+        if (pos >= 0) {
+            itemRatings = itemRatings.clone();
+            itemRatings[pos] = rating;
+        } else {
+            pos = -pos - 1;
+            itemRaters = TrainingCache.insert(itemRaters, pos, userIdx);
+            itemRatings = TrainingCache.insert(itemRatings, pos, rating);
+        }
+        columns.set(itemIdx, new Column(itemRaters, itemRatings));
+    }
+
+    /**
+     * @param itemIdx item index
+     * @return the users who rated the item and their ratings
+     */
+    public Column column(int itemIdx) {
+        return columns.get(itemIdx);
+    }
+}
@@ -0,0 +1,79 @@
+package edu.depaul.cdm.csc577;
+
+import net.librec.common.LibrecException;
+import net.librec.conf.Configuration;
+import net.librec.job.RecommenderJob;
+import net.librec.recommender.RecommenderContext;
+import net.librec.recommender.RecommenderMetrics;
+import net.librec.recommender.item.RecommendedItem;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * RecommenderJob with its steps timed as phases of the "job" component in
+ * RecommenderMetrics: building the data model (reading and splitting the
+ * data), building the similarities and saving the result. The recommender
+ * records its own setup and trainModel phases. Everything else, from the
+ * data model format to the evaluators, filter and result files, is left to
+ * RecommenderJob.
+ * <p>
+ * With rec.model.snapshot.load no similarity is built: the recommenders
+ * take what they would derive from it from the snapshot.
+ */
+public class TimedRecommenderJob extends RecommenderJob {
+
+    private static final String COMPONENT = "job";
+
+    private final Configuration conf;
+
+    /**
+     * @param conf configuration of the job
+     */
+    public TimedRecommenderJob(Configuration conf) {
+        super(conf);
+        this.conf = conf;
+    }
+
+    /**
+     * @param conf configuration of a job
+     * @return whether the recommender is loaded from rec.model.snapshot.load
+     */
+    static boolean loadsSnapshot(Configuration conf) {
+        String loadDir = conf.get("rec.model.snapshot.load");
+        return loadDir != null && !loadDir.trim().isEmpty();
+    }
+
+    @Override
+    public void generateDataModel() throws ClassNotFoundException, IOException, LibrecException {
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(COMPONENT, "dataModel");
+        try {
+            super.generateDataModel();
+        } finally {
+            phase.stop();
+        }
+    }
+
+    @Override
+    public void generateSimilarity(RecommenderContext context) {
+        if (loadsSnapshot(conf)) {
+            return;
+        }
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(COMPONENT, "similarity");
+        try {
+            super.generateSimilarity(context);
+        } finally {
+            phase.stop();
+        }
+    }
+
+    @Override
+    public void saveResult(List<RecommendedItem> recommendedList) throws LibrecException, IOException, ClassNotFoundException {
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(COMPONENT, "saveResult");
+        try {
+            super.saveResult(recommendedList);
+        } finally {
+            phase.stop();
+        }
+    }
+}
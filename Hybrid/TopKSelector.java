@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender;
+
+/**
+ * Bounded selection of the best (id, value) pairs on primitive arrays.
+ * Higher values are better, ties go to the lower id.
+ */
+public class TopKSelector {
+
+    private TopKSelector() {
+    }
+
+    /**
+     * Select the best {@code k} pairs with a min-heap whose root is the worst
+     * pair kept, then heap-sort the kept pairs in place, best first.
+     *
+     * @param ids       ids of the pairs
+     * @param values    values of the pairs
+     * @param count     number of pairs to read from {@code ids} and {@code values}
+     * @param k         maximum number of pairs to select
+     * @param topIds    output ids, of length at least {@code min(k, count)}
+     * @param topValues output values, parallel to {@code topIds}
+     * @return the number of pairs selected
+     */
+    public static int select(int[] ids, double[] values, int count, int k, int[] topIds, double[] topValues) {
+        int size = Math.min(k, count);
+        if (size <= 0) {
+            return 0;
+        }
+
+        int heapSize = 0;
+        for (int n = 0; n < count; n++) {
+            if (heapSize < size) {
+                topIds[heapSize] = ids[n];
+                topValues[heapSize] = values[n];
+                siftUp(topIds, topValues, heapSize++);
+            } else if (isBetter(values[n], ids[n], topValues[0], topIds[0])) {
+                topIds[0] = ids[n];
+                topValues[0] = values[n];
+                siftDown(topIds, topValues, 0, heapSize);
+            }
+        }
+
+        // move the worst pair behind the heap until it is empty
+        while (heapSize > 1) {
+            heapSize--;
+            int id = topIds[0];
+            double value = topValues[0];
+            topIds[0] = topIds[heapSize];
+            topValues[0] = topValues[heapSize];
+            topIds[heapSize] = id;
+            topValues[heapSize] = value;
+            siftDown(topIds, topValues, 0, heapSize);
+        }
+        return size;
+    }
+
+    private static boolean isBetter(double value, int id, double otherValue, int otherId) {
+        return value > otherValue || (value == otherValue && id < otherId);
+    }
+
+    private static void siftUp(int[] ids, double[] values, int pos) {
+        int id = ids[pos];
+        double value = values[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!isBetter(values[parent], ids[parent], value, id)) {
+                break;
+            }
+            ids[pos] = ids[parent];
+            values[pos] = values[parent];
+            pos = parent;
+        }
+        ids[pos] = id;
+        values[pos] = value;
+    }
+
+    private static void siftDown(int[] ids, double[] values, int pos, int size) {
+        int id = ids[pos];
+        double value = values[pos];
+        int half = size >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < size && isBetter(values[child], ids[child], values[right], ids[right])) {
+                child = right;
+            }
+            if (!isBetter(value, id, values[child], ids[child])) {
+                break;
+            }
+            ids[pos] = ids[child];
+            values[pos] = values[child];
+            pos = child;
+        }
+        ids[pos] = id;
+        values[pos] = value;
+    }
+}
@@ -0,0 +1,212 @@
+package net.librec.recommender;
+
+import net.librec.math.structure.SparseMatrix;
+import net.librec.math.structure.SparseVector;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Derived views of a train matrix that several recommenders need: the rows
+ * as primitive arrays with the mean of each user ({@link UserRow}) and the
+ * columns as {@link RatingColumns}.
+ * <p>
+ * Each view is built on first use and then shared, so the components of a
+ * hybrid read the same arrays instead of each building their own. The views
+ * are built at most once even if components ask for them concurrently. The
+ * items, ratings and mean of a user are kept in one immutable row, so a row
+ * replaced by {@link #addRatings} is published with a single store.
+ */
+public class TrainingCache {
+
+    private final SparseMatrix trainMatrix;
+    private final double globalMean;
+    private final int numThreads;
+
+    private volatile AtomicReferenceArray<UserRow> rows;
+    private volatile RatingColumns columns;
+
+    /**
+     * Ratings of one user.
+     */
+    public static final class UserRow {
+        /**
+         * rated items, in ascending order
+         */
+        public final int[] items;
+        /**
+         * ratings, parallel to {@link #items}
+         */
+        public final double[] ratings;
+        /**
+         * mean rating, or the global mean for users without ratings
+         */
+        public final double mean;
+
+        UserRow(int[] items, double[] ratings, double mean) {
+            this.items = items;
+            this.ratings = ratings;
+            this.mean = mean;
+        }
+    }
+
+    /**
+     * @param trainMatrix user-item rating matrix
+     * @param globalMean  mean used for users without ratings
+     * @param numThreads  number of threads used to build the row views
+     */
+    public TrainingCache(SparseMatrix trainMatrix, double globalMean, int numThreads) {
+        this.trainMatrix = trainMatrix;
+        this.globalMean = globalMean;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * @return the train matrix the views are derived from
+     */
+    public SparseMatrix getTrainMatrix() {
+        return trainMatrix;
+    }
+
+    /**
+     * Build all views now instead of on first use.
+     */
+    public void build() {
+        rows();
+        itemRaters();
+    }
+
+    /**
+     * @param userIdx user index
+     * @return the current ratings and mean of the user
+     */
+    public UserRow userRow(int userIdx) {
+        return rows().get(userIdx);
+    }
+
+    /**
+     * @return the raters and ratings of every item
+     */
+    public RatingColumns itemRaters() {
+        RatingColumns result = columns;
+        if (result == null) {
+            synchronized (this) {
+                result = columns;
+                if (result == null) {
+                    result = new RatingColumns(trainMatrix);
+                    columns = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add a batch of new or changed ratings to the views. The rows of the
+     * affected users, with their recomputed means, and the columns of the
+     * affected items are replaced by updated copies, so the train matrix and
+     * arrays handed out before are never written to. Views not built yet are
+     * built first, so they cannot miss the batch.
+     *
+     * @param userIdxs user index of every rating
+     * @param itemIdxs item index of every rating
+     * @param ratings  ratings
+     * @param count    number of ratings in the batch
+     * @return the affected users, in ascending order
+     * @throws IllegalArgumentException if a user or item is not in the train matrix
+     */
+    public synchronized int[] addRatings(int[] userIdxs, int[] itemIdxs, double[] ratings, int count) {
+        AtomicReferenceArray<UserRow> current = rows();
+        RatingColumns currentColumns = itemRaters();
+        for (int n = 0; n < count; n++) {
+            int userIdx = userIdxs[n];
+            int itemIdx = itemIdxs[n];
+            if (userIdx < 0 || userIdx >= trainMatrix.numRows() || itemIdx < 0 || itemIdx >= trainMatrix.numColumns()) {
+                throw new IllegalArgumentException("unknown user " + userIdx + " or item " + itemIdx);
+            }
+        }
+
+        int[] affected = new int[count];
+        for (int n = 0; n < count; n++) {
+            int userIdx = userIdxs[n];
+            int itemIdx = itemIdxs[n];
+            UserRow row = current.get(userIdx);
+            int[] items = row.items;
+            double[] userRatings = row.ratings;
+            int pos = Arrays.binarySearch(items, itemIdx);
+            if (pos >= 0) {
+                userRatings = userRatings.clone();
+                userRatings[pos] = ratings[n];
+            } else {
+                pos = -pos - 1;
+                items = insert(items, pos, itemIdx);
+                userRatings = insert(userRatings, pos, ratings[n]);
+            }
+            current.set(userIdx, new UserRow(items, userRatings, mean(userRatings)));
+            currentColumns.put(itemIdx, userIdx, ratings[n]);
+            affected[n] = userIdx;
+        }
+
+        Arrays.sort(affected);
+        int numAffected = 0;
+        for (int n = 0; n < count; n++) {
+            if (numAffected == 0 || affected[numAffected - 1] != affected[n]) {
+                affected[numAffected++] = affected[n];
+            }
+        }
+        return Arrays.copyOf(affected, numAffected);
+    }
+
+    private static double mean(double[] ratings) {
+        double sum = 0;
+        for (double rating : ratings) {
+            sum += rating;
+        }
+        return sum / ratings.length;
+    }
+
+    static int[] insert(int[] values, int pos, int value) {
+        int[] result = new int[values.length + 1];
+        System.arraycopy(values, 0, result, 0, pos);
+        result[pos] = value;
+        System.arraycopy(values, pos, result, pos + 1, values.length - pos);
+        return result;
+    }
+
+    static double[] insert(double[] values, int pos, double value) {
+        double[] result = new double[values.length + 1];
+        System.arraycopy(values, 0, result, 0, pos);
+        result[pos] = value;
+        System.arraycopy(values, pos, result, pos + 1, values.length - pos);
+        return result;
+    }
+
+    private AtomicReferenceArray<UserRow> rows() {
+        AtomicReferenceArray<UserRow> result = rows;
+        if (result == null) {
+            synchronized (this) {
+                result = rows;
+                if (result == null) {
+                    result = buildRows();
+                    rows = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private AtomicReferenceArray<UserRow> buildRows() {
+        final AtomicReferenceArray<UserRow> result = new AtomicReferenceArray<UserRow>(trainMatrix.numRows());
+        ParallelUserLoop.run(result.length(), numThreads, new ParallelUserLoop.Body() {
+            @Override
+            public void run(int from, int to) {
+                for (int userIdx = from; userIdx < to; userIdx++) {
+                    SparseVector userRatingVector = trainMatrix.row(userIdx);
+                    result.set(userIdx, new UserRow(userRatingVector.getIndex(), userRatingVector.getData(),
+                            userRatingVector.getCount() > 0 ? userRatingVector.mean() : globalMean));
+                }
+            }
+        });
+        return result;
+    }
+}
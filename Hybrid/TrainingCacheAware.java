@@ -0,0 +1,27 @@
+package net.librec.recommender;
+
+import net.librec.common.LibrecException;
+
+/**
+ * A recommender that can read its derived training data from a
+ * {@link TrainingCache} shared with other recommenders.
+ */
+public interface TrainingCacheAware {
+
+    /**
+     * Use the given cache instead of building one from the train matrix.
+     * Must be called before training.
+     *
+     * @param trainingCache cache built on the same train matrix
+     */
+    void setTrainingCache(TrainingCache trainingCache);
+
+    /**
+     * Bring the trained model up to date after ratings of the given users
+     * were added to the cache with {@link TrainingCache#addRatings}.
+     *
+     * @param userIdxs users whose ratings changed, in ascending order
+     * @throws LibrecException if the update fails
+     */
+    void refreshUsers(int[] userIdxs) throws LibrecException;
+}
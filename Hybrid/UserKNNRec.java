@@ -20,14 +20,14 @@ package net.librec.recommender;
 import net.librec.annotation.ModelData;
 import net.librec.common.LibrecException;
 import net.librec.math.structure.DenseVector;
-import net.librec.math.structure.SparseVector;
 import net.librec.math.structure.SymmMatrix;
-import net.librec.math.structure.VectorEntry;
 import net.librec.recommender.AbstractRecommender;
-import net.librec.util.Lists;
+import net.librec.recommender.item.RecommendedItemList;
+import net.librec.recommender.item.RecommendedList;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * UserKNNRecommender
@@ -35,11 +35,18 @@ import java.util.Map.Entry;
  * @author WangYuFeng and Keqiang Wang
  */
 @ModelData({"isRanking", "knn", "userMappingData", "itemMappingData", "userMeans", "trainMatrix", "similarityMatrix"})
-public class UserKNNRec extends AbstractRecommender {
+public class UserKNNRec extends AbstractRecommender implements BatchScorer, TrainingCacheAware, IncrementalRecommender {
     private int knn;
     private DenseVector userMeans;
     private SymmMatrix similarityMatrix;
-    private List<Map.Entry<Integer, Double>>[] userSimilarityList;
+    private RatingColumns itemRaters;
+    // shared views of the train matrix, built here unless a hybrid set them
+    private TrainingCache trainingCache;
+    // built at the end of trainModel() and published through the volatile
+    // write, so predict can be called from several threads
+    private volatile NeighborIndex userNeighbors;
+    // predict latencies, only recorded with rec.metrics.latency
+    private LatencyHistogram predictLatency;
 
     /**
      * (non-Javadoc)
@@ -48,9 +55,33 @@ public class UserKNNRec extends AbstractRecommender {
      */
     @Override
     public void setup() throws LibrecException {
-        super.setup();
-        knn = conf.getInt("rec.neighbors.knn.number");
-        similarityMatrix = context.getSimilarity().getSimilarityMatrix();
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "setup");
+        try {
+            super.setup();
+            knn = conf.getInt("rec.neighbors.knn.number");
+            // the neighbor lists of a snapshot replace the similarity, so the
+            // job does not build one when rec.model.snapshot.load is set
+            String loadDir = conf.get("rec.model.snapshot.load");
+            if (context.getSimilarity() != null) {
+                similarityMatrix = context.getSimilarity().getSimilarityMatrix();
+            } else if (loadDir == null || loadDir.trim().isEmpty()) {
+                throw new LibrecException("UserKNNRec needs a similarity, set rec.recommender.similarities");
+            }
+            predictLatency = conf.getBoolean("rec.metrics.latency", false)
+                    ? RecommenderMetrics.get().latency(getClass().getSimpleName()) : null;
+        } finally {
+            phase.stop();
+        }
+    }
+
+    /**
+     * (non-Javadoc)
+     *
+     * @see net.librec.recommender.TrainingCacheAware#setTrainingCache(TrainingCache)
+     */
+    @Override
+    public void setTrainingCache(TrainingCache trainingCache) {
+        this.trainingCache = trainingCache;
     }
 
     /**
@@ -60,84 +91,420 @@ public class UserKNNRec extends AbstractRecommender {
      */
     @Override
     public void trainModel() throws LibrecException {
-        userMeans = new DenseVector(numUsers);
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "trainModel");
+        try {
+            // the means, rows and columns come from the training cache, which
+            // builds them on rec.knn.train.threads threads if nobody did yet
+            if (trainingCache == null) {
+                trainingCache = new TrainingCache(trainMatrix, globalMean, conf.getInt("rec.knn.train.threads", 1));
+            }
+            userMeans = new DenseVector(numUsers);
+            for (int userIdx = 0; userIdx < numUsers; userIdx++) {
+                userMeans.set(userIdx, trainingCache.userRow(userIdx).mean);
+            }
+            itemRaters = trainingCache.itemRaters();
+
+            // with rec.model.snapshot.load the means and neighbor lists are
+            // mapped from a snapshot written by an earlier run
+            String loadDir = conf.get("rec.model.snapshot.load");
+            if (loadDir != null && !loadDir.trim().isEmpty()) {
+                loadModel(ModelSnapshot.file(loadDir, getClass()));
+                return;
+            }
+
+            // build the neighbor lists eagerly, so no predict call pays for
+            // them or races another caller to build them
+            userNeighbors = null;
+            createUserSimilarityList();
+
+            String saveDir = conf.get("rec.model.snapshot.save");
+            if (saveDir != null && !saveDir.trim().isEmpty()) {
+                saveModel(ModelSnapshot.file(saveDir, getClass()));
+            }
+        } finally {
+            phase.stop();
+        }
+    }
+
+    /**
+     * Write the user means and neighbor lists to a model snapshot.
+     *
+     * @param file snapshot file
+     * @throws LibrecException if the file cannot be written
+     */
+    public void saveModel(File file) throws LibrecException {
+        NeighborIndex neighbors = createUserSimilarityList();
+        int[][] neighborIds = new int[numUsers][];
+        float[][] neighborSims = new float[numUsers][];
         for (int userIdx = 0; userIdx < numUsers; userIdx++) {
-            SparseVector userRatingVector = trainMatrix.row(userIdx);
-            userMeans.set(userIdx, userRatingVector.getCount() > 0 ? userRatingVector.mean() : globalMean);
+            NeighborIndex.Row row = neighbors.row(userIdx);
+            neighborIds[userIdx] = row.ids;
+            neighborSims[userIdx] = row.sims;
+        }
+        ModelSnapshot snapshot = new ModelSnapshot(getClass().getName());
+        snapshot.put("knn", new int[]{knn});
+        snapshot.put("userMeans", userMeans.getData());
+        snapshot.put("neighborIds", neighborIds);
+        snapshot.put("neighborSims", neighborSims);
+        try {
+            snapshot.write(file);
+        } catch (IOException e) {
+            throw new LibrecException("Cannot write model snapshot " + file, e);
+        }
+        LOG.info("Saved model snapshot " + file);
+    }
+
+    /**
+     * Read the user means and neighbor lists from a model snapshot instead of
+     * building them. The rows and columns still come from the train matrix.
+     *
+     * @param file snapshot file
+     * @throws LibrecException if the file is no snapshot of this model, does not fit the data or was
+     *                         saved with another rec.neighbors.knn.number
+     */
+    public void loadModel(File file) throws LibrecException {
+        try {
+            ModelSnapshot snapshot = ModelSnapshot.map(file, getClass().getName());
+            double[] means = snapshot.getDoubles("userMeans");
+            int[][] neighborIds = snapshot.getIntRows("neighborIds");
+            float[][] neighborSims = snapshot.getFloatRows("neighborSims");
+            if (means.length != numUsers || neighborIds.length != numUsers || neighborSims.length != numUsers) {
+                throw new LibrecException("Model snapshot " + file + " has " + means.length + " users and "
+                        + neighborIds.length + " neighbor lists, the data has " + numUsers + " users");
+            }
+            int snapshotKnn = snapshot.getInts("knn")[0];
+            if (snapshotKnn != knn) {
+                throw new LibrecException("Model snapshot " + file + " was saved with rec.neighbors.knn.number="
+                        + snapshotKnn + ", the configuration has " + knn);
+            }
+            userMeans = new DenseVector(means);
+            userNeighbors = new NeighborIndex(neighborIds, neighborSims);
+        } catch (IOException e) {
+            throw new LibrecException("Cannot read model snapshot " + file, e);
         }
+        LOG.info("Loaded model snapshot " + file);
+    }
+
+    /**
+     * (non-Javadoc)
+     *
+     * @see net.librec.recommender.IncrementalRecommender#update(int[], int[], double[], int)
+     */
+    @Override
+    public void update(int[] userIdxs, int[] itemIdxs, double[] ratings, int count) throws LibrecException {
+        if (trainingCache == null) {
+            throw new LibrecException("UserKNNRec must be trained before it can be updated");
+        }
+        int[] affected;
+        try {
+            affected = trainingCache.addRatings(userIdxs, itemIdxs, ratings, count);
+        } catch (IllegalArgumentException e) {
+            throw new LibrecException(e);
+        }
+        refreshUsers(affected);
+    }
+
+    /**
+     * Recompute the similarities of the affected users to all other users and
+     * rebuild their neighbor lists. The means were already refreshed by the
+     * training cache. The lists of the other users keep their similarities to
+     * the affected users until the next full training. Every list is replaced
+     * with one store, so a concurrent predict sees either the old or the new
+     * list of a user.
+     * <p>
+     * Only the pearson correlation is recomputed here, with any other
+     * similarity class the neighbor lists stay as trained. Without a
+     * similarity matrix (loaded from a snapshot) only the lists are updated.
+     *
+     * @param userIdxs users whose ratings changed, in ascending order
+     */
+    @Override
+    public synchronized void refreshUsers(int[] userIdxs) {
+        NeighborIndex neighbors = createUserSimilarityList();
+        // take over the means the training cache recomputed
+        for (int userIdx : userIdxs) {
+            userMeans.set(userIdx, trainingCache.userRow(userIdx).mean);
+        }
+        if (!"pcc".equalsIgnoreCase(conf.get("rec.similarity.class", "").trim())) {
+            LOG.info("neighbor lists are only refreshed for pcc, keep the trained ones");
+            return;
+        }
+        int cap = conf.getInt("rec.neighbors.list.cap", 0);
+        int shrinkage = conf.getInt("rec.similarity.shrinkage", 0);
+        int[] ids = new int[numUsers];
+        double[] sims = new double[numUsers];
+        for (int userIdx : userIdxs) {
+            TrainingCache.UserRow userRow = trainingCache.userRow(userIdx);
+            int count = 0;
+            for (int otherIdx = 0; otherIdx < numUsers; otherIdx++) {
+                if (otherIdx == userIdx) {
+                    continue;
+                }
+                TrainingCache.UserRow otherRow = trainingCache.userRow(otherIdx);
+                double sim = pearson(userRow.items, userRow.ratings, otherRow.items, otherRow.ratings, shrinkage);
+                if (Double.isNaN(sim)) {
+                    // no similarity can be computed any more
+                    if (similarityMatrix != null && similarityMatrix.get(userIdx, otherIdx) != 0) {
+                        similarityMatrix.set(userIdx, otherIdx, 0);
+                    }
+                    continue;
+                }
+                if (similarityMatrix != null) {
+                    similarityMatrix.set(userIdx, otherIdx, sim);
+                }
+                ids[count] = otherIdx;
+                sims[count] = sim;
+                count++;
+            }
+            neighbors.update(userIdx, Arrays.copyOf(ids, count), Arrays.copyOf(sims, count), cap);
+        }
+    }
+
+    /**
+     * Pearson correlation over the co-rated items of two users, computed like
+     * the pcc similarity: NaN for fewer than two co-rated items or a zero
+     * variance, and shrunk by n / (n + shrinkage).
+     */
+    private static double pearson(int[] items, double[] ratings, int[] otherItems, double[] otherRatings, int shrinkage) {
+        // co-rated items are found with a linear merge of the sorted rows
+        int n = 0;
+        double sum = 0, otherSum = 0;
+        for (int i = 0, j = 0; i < items.length && j < otherItems.length; ) {
+            if (items[i] == otherItems[j]) {
+                sum += ratings[i++];
+                otherSum += otherRatings[j++];
+                n++;
+            } else if (items[i] < otherItems[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double mean = sum / n, otherMean = otherSum / n;
+        double num = 0, pow2 = 0, otherPow2 = 0;
+        for (int i = 0, j = 0; i < items.length && j < otherItems.length; ) {
+            if (items[i] == otherItems[j]) {
+                double diff = ratings[i++] - mean;
+                double otherDiff = otherRatings[j++] - otherMean;
+                num += diff * otherDiff;
+                pow2 += diff * diff;
+                otherPow2 += otherDiff * otherDiff;
+            } else if (items[i] < otherItems[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        double denominator = Math.sqrt(pow2 * otherPow2);
+        if (denominator == 0) {
+            return Double.NaN;
+        }
+        double sim = num / denominator;
+        return shrinkage > 0 ? sim * n / (n + shrinkage + 0.0) : sim;
     }
 
     /**
      * (non-Javadoc)
      *
      * @see net.librec.recommender.AbstractRecommender#predict(int, int)
+     *
+     * Only reads the trained model, so it is safe for concurrent callers.
      */
     @Override
     public double predict(int userIdx, int itemIdx) throws LibrecException {
+        LatencyHistogram latency = predictLatency;
+        if (latency == null) {
+            return estimate(userIdx, itemIdx);
+        }
+        long start = System.nanoTime();
+        double rating = estimate(userIdx, itemIdx);
+        latency.record(System.nanoTime() - start);
+        return rating;
+    }
+
+    private double estimate(int userIdx, int itemIdx) {
+        NeighborIndex neighbors = userNeighbors;
         //create userSimilarityList if not exists
-        if (!(null != userSimilarityList && userSimilarityList.length > 0)) {
-            createUserSimilarityList();
+        if (neighbors == null) {
+            neighbors = createUserSimilarityList();
         }
-        // find a number of similar users
-        List<Map.Entry<Integer, Double>> nns = new ArrayList<>();
-        List<Map.Entry<Integer, Double>> simList = userSimilarityList[userIdx];
+        // find a number of similar users. the raters of the item are
+        // sorted by user index, so every neighbor is looked up with a
+        // binary search and its rating is read at the position found,
+        // and the sums are accumulated while walking the neighbors
+        // a user's ids and sims, and an item's raters and ratings, are read
+        // from one row each, so a concurrent update never mixes two lists
+        NeighborIndex.Row row = neighbors.row(userIdx);
+        int[] simUsers = row.ids;
+        float[] simValues = row.sims;
+        RatingColumns.Column column = itemRaters.column(itemIdx);
+        int[] raters = column.raters;
+        double[] ratings = column.ratings;
 
         int count = 0;
-        Set<Integer> userSet = trainMatrix.getRowsSet(itemIdx);
-        for (Map.Entry<Integer, Double> userRatingEntry : simList) {
-            int similarUserIdx = userRatingEntry.getKey();
-            if (!userSet.contains(similarUserIdx)) {
+        double sum = 0, ws = 0;
+        for (int k = 0; k < simUsers.length && count < knn; k++) {
+            double sim = simValues[k];
+            if (!isRanking && sim <= 0) {
+                // neighbors are sorted, no positive similarity follows
+                break;
+            }
+            int similarUserIdx = simUsers[k];
+            int pos = Arrays.binarySearch(raters, similarUserIdx);
+            if (pos < 0) {
                 continue;
             }
-            double sim = userRatingEntry.getValue();
+            count++;
             if (isRanking) {
-                nns.add(userRatingEntry);
-                count++;
-            } else if (sim > 0) {
-                nns.add(userRatingEntry);
-                count++;
-            }
-            if (count == knn) {
-                break;
+                sum += sim;
+            } else {
+                // for rating prediction
+                sum += sim * (ratings[pos] - userMeans.get(similarUserIdx));
+                ws += Math.abs(sim);
             }
         }
-        if (nns.size() == 0) {
+        if (count == 0) {
             return isRanking ? 0 : globalMean;
         }
         if (isRanking) {
-            double sum = 0.0d;
-            for (Entry<Integer, Double> userRatingEntry : nns) {
-                sum += userRatingEntry.getValue();
-            }
             return sum;
-        } else {
-            // for rating prediction
-            double sum = 0, ws = 0;
-            for (Entry<Integer, Double> userRatingEntry : nns) {
-                int similarUserIdx = userRatingEntry.getKey();
-                double sim = userRatingEntry.getValue();
-                double rate = trainMatrix.get(similarUserIdx, itemIdx);
-                sum += sim * (rate - userMeans.get(similarUserIdx));
-                ws += Math.abs(sim);
+        }
+        return ws > 0 ? userMeans.get(userIdx) + sum / ws : globalMean;
+    }
+
+    /**
+     * Score several candidate items for one user in a single pass over the
+     * user's neighbors. The similarity of every neighbor is scattered onto the
+     * items that neighbor rated, and each item keeps the first knn neighbors
+     * in similarity order, so the scores equal those of
+     * {@link #predict(int, int)}.
+     *
+     * @param userIdx    user index
+     * @param candidates candidate item indices
+     * @param count      number of candidates
+     * @param scores     output scores, parallel to candidates
+     */
+    @Override
+    public void predict(int userIdx, int[] candidates, int count, double[] scores) {
+        NeighborIndex neighbors = userNeighbors;
+        if (neighbors == null) {
+            neighbors = createUserSimilarityList();
+        }
+        NeighborIndex.Row row = neighbors.row(userIdx);
+        int[] simUsers = row.ids;
+        float[] simValues = row.sims;
+
+        double[] sums = new double[numItems];
+        double[] wss = isRanking ? null : new double[numItems];
+        int[] counts = new int[numItems];
+        for (int k = 0; k < simUsers.length; k++) {
+            double sim = simValues[k];
+            if (!isRanking && sim <= 0) {
+                break;
+            }
+            int similarUserIdx = simUsers[k];
+            TrainingCache.UserRow similarRow = trainingCache.userRow(similarUserIdx);
+            int[] items = similarRow.items;
+            double[] ratings = similarRow.ratings;
+            double similarUserMean = userMeans.get(similarUserIdx);
+            for (int n = 0; n < items.length; n++) {
+                int itemIdx = items[n];
+                if (counts[itemIdx] >= knn) {
+                    continue;
+                }
+                counts[itemIdx]++;
+                if (isRanking) {
+                    sums[itemIdx] += sim;
+                } else {
+                    sums[itemIdx] += sim * (ratings[n] - similarUserMean);
+                    wss[itemIdx] += Math.abs(sim);
+                }
+            }
+        }
+
+        double userMean = userMeans.get(userIdx);
+        for (int n = 0; n < count; n++) {
+            int itemIdx = candidates[n];
+            if (counts[itemIdx] == 0) {
+                scores[n] = isRanking ? 0 : globalMean;
+            } else if (isRanking) {
+                scores[n] = sums[itemIdx];
+            } else {
+                scores[n] = wss[itemIdx] > 0 ? userMean + sums[itemIdx] / wss[itemIdx] : globalMean;
             }
-            return ws > 0 ? userMeans.get(userIdx) + sum / ws : globalMean;
         }
     }
 
     /**
-     * Create userSimilarityList.
+     * Rank all items the user has not rated and keep the best ones.
+     *
+     * @param userIdx   user index
+     * @param topN      number of items to keep
+     * @param topItems  output item indices, best first
+     * @param topScores output scores, parallel to topItems
+     * @return the number of items kept
+     */
+    public int recommendTopN(int userIdx, int topN, int[] topItems, double[] topScores) {
+        int[] ratedItems = trainingCache.userRow(userIdx).items;
+        int[] candidates = new int[numItems - ratedItems.length];
+        int count = 0;
+        int r = 0;
+        for (int itemIdx = 0; itemIdx < numItems; itemIdx++) {
+            if (r < ratedItems.length && ratedItems[r] == itemIdx) {
+                r++;
+                continue;
+            }
+            candidates[count++] = itemIdx;
+        }
+        double[] scores = new double[count];
+        predict(userIdx, candidates, count, scores);
+        return TopKSelector.select(candidates, scores, count, topN, topItems, topScores);
+    }
+
+    /**
+     * (non-Javadoc)
+     *
+     * @see net.librec.recommender.AbstractRecommender#recommendRank()
+     *
+     * Scores every user with one batch call instead of a predict call per item.
+     */
+    @Override
+    protected RecommendedList recommendRank() throws LibrecException {
+        RecommendedItemList recommendedItemList = new RecommendedItemList(numUsers - 1, numUsers);
+        int[] topItems = new int[topN];
+        double[] topScores = new double[topN];
+        for (int userIdx = 0; userIdx < numUsers; ++userIdx) {
+            int size = recommendTopN(userIdx, topN, topItems, topScores);
+            for (int n = 0; n < size; n++) {
+                recommendedItemList.addUserItemIdx(userIdx, topItems[n], topScores[n]);
+            }
+            recommendedItemList.topNRankByIndex(userIdx, topN);
+        }
+        if (recommendedItemList.size() == 0) {
+            throw new IndexOutOfBoundsException("No item is recommended, there is something error in the recommendation algorithm! Please check it!");
+        }
+        recommendedList = recommendedItemList;
+        return recommendedList;
+    }
+
+    /**
+     * Create userSimilarityList, unless another thread already did.
+     *
+     * @return the neighbor lists of all users
      */
-    public void createUserSimilarityList() {
-        userSimilarityList = new ArrayList[numUsers];
-        for (int userIndex = 0; userIndex < numUsers; ++userIndex) {
-            SparseVector similarityVector = similarityMatrix.row(userIndex);
-            userSimilarityList[userIndex] = new ArrayList<>(similarityVector.size());
-            Iterator<VectorEntry> simItr = similarityVector.iterator();
-            while (simItr.hasNext()) {
-                VectorEntry simVectorEntry = simItr.next();
-                userSimilarityList[userIndex].add(new AbstractMap.SimpleImmutableEntry<>(simVectorEntry.index(), simVectorEntry.get()));
-            }
-            Lists.sortList(userSimilarityList[userIndex], false);
+    public synchronized NeighborIndex createUserSimilarityList() {
+        if (userNeighbors != null) {
+            return userNeighbors;
         }
+        // neighbors are kept as primitive id/similarity arrays, and with
+        // rec.neighbors.list.cap only the best ones are selected and sorted
+        int cap = conf.getInt("rec.neighbors.list.cap", 0);
+        int numThreads = conf.getInt("rec.knn.train.threads", 1);
+        NeighborIndex neighbors = NeighborIndex.build(similarityMatrix, numUsers, cap, numThreads);
+        userNeighbors = neighbors;
+        return neighbors;
     }
 }
@@ -0,0 +1,510 @@
+package net.librec.recommender;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.librec.common.LibrecException;
+import net.librec.conf.Configuration;
+import net.librec.data.DataModel;
+import net.librec.data.model.TextDataModel;
+import net.librec.math.algorithm.Randoms;
+import net.librec.math.structure.SparseVector;
+import net.librec.similarity.RecommenderSimilarity;
+import net.librec.util.DriverClassUtil;
+import net.librec.util.ReflectionUtil;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP service answering predictions and top-N lists of a trained
+ * recommender, run like Driver with a properties file
+ * (conf/server.properties by default).
+ * <p>
+ * The recommender of rec.recommender.class is trained on start, or loaded
+ * from a snapshot with rec.model.snapshot.load, and then answers
+ * <pre>
+ * GET /recommend?user=&lt;user id&gt;&amp;n=&lt;list size&gt;
+ * GET /predict?user=&lt;user id&gt;&amp;item=&lt;item id&gt;
+ * GET /metrics
+ * </pre>
+ * with the user and item ids of the data file. Top-N lists score every item
+ * the user has not rated in the train data with the recommender's own
+ * predict, the same as ranking in the offline job.
+ * <p>
+ * Requests run on virtual threads when the JVM has them (Java 21 and later)
+ * and on a fixed pool of rec.server.threads otherwise. At most
+ * rec.server.max.inflight requests compute at the same time; a request that
+ * cannot start within rec.server.queue.timeout.ms gets a 503, which keeps the
+ * latency of the admitted requests bounded under overload. Concurrent top-N
+ * requests for the same user and list size are coalesced into one
+ * computation whose result every caller gets.
+ * <p>
+ * It lives in this package because setup, trainModel and predict are
+ * protected in AbstractRecommender. Only reads are served: the model must not
+ * be updated while the server runs.
+ */
+public class RecommenderServer {
+
+    private static final String CONFIG_FILE = "conf/server.properties";
+
+    private final AbstractRecommender recommender;
+    private final Map<String, Integer> userIds;
+    private final Map<String, Integer> itemIds;
+    private final String[] userNames;
+    private final String[] itemNames;
+    private final int maxListSize;
+
+    private final Semaphore inFlight;
+    private final long queueTimeoutMillis;
+    private final ConcurrentHashMap<String, FutureTask<String>> pending = new ConcurrentHashMap<String, FutureTask<String>>();
+    private final ConcurrentLinkedQueue<Scratch> scratches = new ConcurrentLinkedQueue<Scratch>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Candidate and selection buffers of one top-N request, reused by later
+     * requests. There are never more of them than requests in flight.
+     */
+    private static class Scratch {
+        final int[] candidates;
+        final double[] scores;
+        final int[] topIds;
+        final double[] topScores;
+
+        Scratch(int numItems, int maxListSize) {
+            candidates = new int[numItems];
+            scores = new double[numItems];
+            topIds = new int[maxListSize];
+            topScores = new double[maxListSize];
+        }
+    }
+
+    /**
+     * A request that is answered with an error status.
+     */
+    private static class RequestException extends Exception {
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * @param recommender trained recommender
+     * @param conf        configuration with the rec.server.* settings
+     */
+    public RecommenderServer(AbstractRecommender recommender, Configuration conf) {
+        this.recommender = recommender;
+        this.userIds = recommender.userMappingData;
+        this.itemIds = recommender.itemMappingData;
+        this.userNames = new String[recommender.numUsers];
+        for (Map.Entry<String, Integer> entry : userIds.entrySet()) {
+            userNames[entry.getValue()] = entry.getKey();
+        }
+        this.itemNames = new String[recommender.numItems];
+        for (Map.Entry<String, Integer> entry : itemIds.entrySet()) {
+            itemNames[entry.getValue()] = entry.getKey();
+        }
+        this.maxListSize = Math.max(1, conf.getInt("rec.server.max.n", 100));
+        int maxInFlight = conf.getInt("rec.server.max.inflight", 2 * Runtime.getRuntime().availableProcessors());
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.queueTimeoutMillis = conf.getLong("rec.server.queue.timeout.ms", 50L);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties prop = new Properties();
+        FileInputStream in = new FileInputStream(args.length > 0 ? args[0] : CONFIG_FILE);
+        try {
+            prop.load(in);
+        } finally {
+            in.close();
+        }
+        Configuration conf = new Configuration();
+        for (String name : prop.stringPropertyNames()) {
+            conf.set(name, prop.getProperty(name));
+        }
+
+        long start = System.nanoTime();
+        AbstractRecommender recommender = train(conf);
+        System.out.println("trained " + recommender.getClass().getSimpleName() + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        final RecommenderServer server = new RecommenderServer(recommender, conf);
+        server.start(conf.getInt("rec.server.port", 8080), conf);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+    }
+
+    /**
+     * Build the data model, the similarity and the recommender of
+     * rec.recommender.class, and train it like RecommenderJob does.
+     *
+     * @param conf configuration
+     * @return the trained recommender
+     * @throws Exception if the data cannot be read or the recommender fails
+     */
+    public static AbstractRecommender train(Configuration conf) throws Exception {
+        Randoms.seed(conf.getLong("rec.random.seed", 20161205L));
+        DataModel dataModel = new TextDataModel(conf);
+        dataModel.buildDataModel();
+        RecommenderContext context = new RecommenderContext(conf, dataModel);
+
+        // the first configured similarity, like RecommenderJob sets on the context,
+        // unless the model comes from a snapshot and does not need it
+        String loadDir = conf.get("rec.model.snapshot.load");
+        String[] similarityKeys = conf.getStrings("rec.recommender.similarities");
+        if (similarityKeys != null && similarityKeys.length > 0 && (loadDir == null || loadDir.trim().isEmpty())) {
+            conf.set("rec.recommender.similarity.key", similarityKeys[0].trim());
+            RecommenderSimilarity similarity = (RecommenderSimilarity) ReflectionUtil.newInstance(
+                    DriverClassUtil.getClass(conf.get("rec.similarity.class")), conf);
+            similarity.buildSimilarityMatrix(dataModel);
+            context.setSimilarity(similarity);
+        }
+
+        AbstractRecommender recommender = (AbstractRecommender) ReflectionUtil.newInstance(
+                DriverClassUtil.getClass(conf.get("rec.recommender.class")), conf);
+        recommender.setContext(context);
+        recommender.setup();
+        recommender.trainModel();
+        return recommender;
+    }
+
+    /**
+     * Start answering requests.
+     *
+     * @param port port to listen on, 0 picks a free one
+     * @param conf configuration with the rec.server.* settings
+     * @throws IOException if the port cannot be bound
+     */
+    public void start(int port, Configuration conf) throws IOException {
+        executor = newExecutor(conf.getBoolean("rec.server.virtual.threads", true),
+                conf.getInt("rec.server.threads", 4 * Runtime.getRuntime().availableProcessors()));
+        // without TCP_NODELAY a response written as headers and body waits
+        // for the client's delayed ACK, about 40 ms on Linux
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), conf.getInt("rec.server.backlog", 1024));
+        server.createContext("/recommend", new Endpoint("/recommend") {
+            @Override
+            String respond(Map<String, String> params) throws Exception {
+                return recommend(userIndex(params), listSize(params));
+            }
+        });
+        server.createContext("/predict", new Endpoint("/predict") {
+            @Override
+            String respond(Map<String, String> params) throws Exception {
+                return predict(userIndex(params), itemIndex(params));
+            }
+        });
+        server.createContext("/metrics", new Endpoint("/metrics") {
+            @Override
+            String respond(Map<String, String> params) {
+                return RecommenderMetrics.get().toJson();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("serving " + recommender.getClass().getSimpleName() + " on port " + port());
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop accepting requests, give running ones a second to finish and
+     * print the request counters.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(1);
+            executor.shutdown();
+            System.out.println("coalesced " + coalesced.get() + " and rejected " + rejected.get() + " requests");
+        }
+    }
+
+    /**
+     * A virtual thread per request when the JVM has them, looked up by
+     * reflection so the server still builds and runs on Java 8.
+     */
+    private static ExecutorService newExecutor(boolean virtualThreads, int numThreads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException e) {
+                // before Java 21
+            } catch (IllegalAccessException e) {
+                // fall back to platform threads
+            } catch (InvocationTargetException e) {
+                // fall back to platform threads
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, numThreads));
+    }
+
+    private String predict(int userIdx, int itemIdx) throws Exception {
+        admit();
+        double rating;
+        try {
+            rating = recommender.predict(userIdx, itemIdx);
+        } finally {
+            inFlight.release();
+        }
+        // rating predictions are reported on the rating scale, like the offline job
+        if (!recommender.isRanking) {
+            rating = Math.max(recommender.minRate, Math.min(recommender.maxRate, rating));
+        }
+        return "{\"user\": " + quote(userNames[userIdx]) + ", \"item\": " + quote(itemNames[itemIdx])
+                + ", \"rating\": " + number(rating) + "}";
+    }
+
+    /**
+     * The top-N list of a user. A request for a user and list size that is
+     * already being computed waits for that computation instead, without
+     * taking a slot of rec.server.max.inflight.
+     */
+    private String recommend(final int userIdx, final int listSize) throws Exception {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                admit();
+                try {
+                    return topN(userIdx, listSize);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+        String key = userIdx + ":" + listSize;
+        FutureTask<String> running = pending.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+            running = task;
+        } else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private String topN(int userIdx, int listSize) throws LibrecException {
+        Scratch scratch = scratches.poll();
+        if (scratch == null) {
+            scratch = new Scratch(recommender.numItems, maxListSize);
+        }
+        try {
+            // the items rated in the train data are sorted, so they are
+            // skipped while walking all items once
+            SparseVector ratedItems = recommender.trainMatrix.row(userIdx);
+            int[] rated = ratedItems.getIndex();
+            int numRated = ratedItems.getCount();
+            int numCandidates = 0;
+            int next = 0;
+            for (int itemIdx = 0; itemIdx < recommender.numItems; itemIdx++) {
+                if (next < numRated && rated[next] == itemIdx) {
+                    next++;
+                    continue;
+                }
+                scratch.candidates[numCandidates] = itemIdx;
+                scratch.scores[numCandidates] = recommender.predict(userIdx, itemIdx);
+                numCandidates++;
+            }
+            int size = TopKSelector.select(scratch.candidates, scratch.scores, numCandidates, listSize,
+                    scratch.topIds, scratch.topScores);
+
+            StringBuilder json = new StringBuilder(64 + 48 * size);
+            json.append("{\"user\": ").append(quote(userNames[userIdx])).append(", \"items\": [");
+            for (int n = 0; n < size; n++) {
+                json.append(n == 0 ? "" : ", ").append("{\"item\": ").append(quote(itemNames[scratch.topIds[n]]))
+                        .append(", \"score\": ").append(number(scratch.topScores[n])).append('}');
+            }
+            return json.append("]}").toString();
+        } finally {
+            scratches.offer(scratch);
+        }
+    }
+
+    private int userIndex(Map<String, String> params) throws RequestException {
+        String user = required(params, "user");
+        Integer userIdx = userIds.get(user);
+        if (userIdx == null) {
+            throw new RequestException(404, "unknown user " + user);
+        }
+        return userIdx;
+    }
+
+    private int itemIndex(Map<String, String> params) throws RequestException {
+        String item = required(params, "item");
+        Integer itemIdx = itemIds.get(item);
+        if (itemIdx == null) {
+            throw new RequestException(404, "unknown item " + item);
+        }
+        return itemIdx;
+    }
+
+    private int listSize(Map<String, String> params) throws RequestException {
+        String n = params.get("n");
+        if (n == null) {
+            return Math.min(10, maxListSize);
+        }
+        try {
+            int listSize = Integer.parseInt(n);
+            if (listSize >= 1 && listSize <= maxListSize) {
+                return listSize;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new RequestException(400, "n must be between 1 and " + maxListSize);
+    }
+
+    private static String required(Map<String, String> params, String name) throws RequestException {
+        String value = params.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new RequestException(400, "missing parameter " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Take a slot of rec.server.max.inflight, waiting at most
+     * rec.server.queue.timeout.ms for one.
+     */
+    private void admit() throws RequestException, InterruptedException {
+        if (!inFlight.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            rejected.incrementAndGet();
+            throw new RequestException(503, "too many requests in flight");
+        }
+    }
+
+    /**
+     * One endpoint: error statuses, the response and its latency.
+     */
+    private abstract class Endpoint implements HttpHandler {
+        private final LatencyHistogram latency;
+
+        Endpoint(String path) {
+            latency = RecommenderMetrics.get().latency("server " + path);
+        }
+
+        abstract String respond(Map<String, String> params) throws Exception;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            int status = 200;
+            String body;
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    throw new RequestException(405, "only GET is supported");
+                }
+                body = respond(parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (RequestException e) {
+                status = e.status;
+                body = error(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 503;
+                body = error("interrupted");
+            } catch (Exception e) {
+                status = 500;
+                body = error(String.valueOf(e));
+            }
+
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws RequestException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null) {
+            return params;
+        }
+        try {
+            for (String pair : query.split("&")) {
+                int split = pair.indexOf('=');
+                if (split > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+                            URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(400, "malformed query");
+        }
+        return params;
+    }
+
+    private static String error(String message) {
+        return "{\"error\": " + quote(message) + "}";
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int n = 0; n < value.length(); n++) {
+            char c = value.charAt(n);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,235 @@
+package edu.depaul.cdm.csc577;
+
+import net.librec.recommender.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load test of a running RecommenderServer, run with the same properties
+ * file as the server (conf/server.properties by default).
+ * <p>
+ * load.threads clients send /recommend and /predict requests (a
+ * load.predict.ratio share of /predict) for load.seconds, after
+ * load.warmup.seconds of unmeasured requests. User and item ids are drawn
+ * from the rating file of data.input.path; with load.hot.users only the
+ * first that many users are asked for, which shows request coalescing.
+ * <p>
+ * Without load.rate every client sends its next request when the last one
+ * is answered. With load.rate (requests per second over all clients) the
+ * requests are sent on a fixed schedule and latency counts from the time a
+ * request was due, so a stalled server is not hidden by clients that wait
+ * for it.
+ */
+public class ServerLoadTest {
+
+    private static final String CONFIG_FILE = "conf/server.properties";
+
+    private final String baseUrl;
+    private final int numThreads;
+    private final double warmupSeconds;
+    private final double seconds;
+    private final double rate;
+    private final double predictRatio;
+    private final int listSize;
+    private final long seed;
+    private final String[] users;
+    private final String[] items;
+
+    private final LatencyHistogram recommendLatency = new LatencyHistogram();
+    private final LatencyHistogram predictLatency = new LatencyHistogram();
+    // responses by status class: 2xx, 4xx, 5xx (503 separately) and failures
+    private final AtomicLongArray statuses = new AtomicLongArray(5);
+
+    ServerLoadTest(Properties properties) throws IOException {
+        this.baseUrl = properties.getProperty("load.url", "http://localhost:" + properties.getProperty("rec.server.port", "8080"));
+        this.numThreads = Integer.parseInt(properties.getProperty("load.threads", "32"));
+        this.warmupSeconds = Double.parseDouble(properties.getProperty("load.warmup.seconds", "5"));
+        this.seconds = Double.parseDouble(properties.getProperty("load.seconds", "30"));
+        this.rate = Double.parseDouble(properties.getProperty("load.rate", "0"));
+        this.predictRatio = Double.parseDouble(properties.getProperty("load.predict.ratio", "0.5"));
+        this.listSize = Integer.parseInt(properties.getProperty("load.n", "10"));
+        this.seed = Long.parseLong(properties.getProperty("load.seed", "20161205"));
+
+        File ratingFile = new File(properties.getProperty("dfs.data.dir", "data"), properties.getProperty("data.input.path"));
+        Set<String> userSet = new LinkedHashSet<String>();
+        Set<String> itemSet = new LinkedHashSet<String>();
+        readIds(ratingFile, userSet, itemSet);
+        List<String> userList = new ArrayList<String>(userSet);
+        int hotUsers = Integer.parseInt(properties.getProperty("load.hot.users", "0"));
+        if (hotUsers > 0 && hotUsers < userList.size()) {
+            userList = userList.subList(0, hotUsers);
+        }
+        this.users = userList.toArray(new String[userList.size()]);
+        this.items = itemSet.toArray(new String[itemSet.size()]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties prop = new Properties();
+        FileInputStream in = new FileInputStream(args.length > 0 ? args[0] : CONFIG_FILE);
+        try {
+            prop.load(in);
+        } finally {
+            in.close();
+        }
+        new ServerLoadTest(prop).run();
+        System.out.print("Finished");
+    }
+
+    void run() throws InterruptedException {
+        final long start = System.nanoTime();
+        final long measureStart = start + (long) (warmupSeconds * 1e9);
+        final long end = measureStart + (long) (seconds * 1e9);
+        // every client sends every numThreads / rate seconds
+        final long interval = rate > 0 ? (long) (numThreads / rate * 1e9) : 0;
+
+        Thread[] clients = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final Random random = new Random(seed + t);
+            // spread the first requests of the clients over one interval
+            final long firstDue = start + interval * t / numThreads;
+            clients[t] = new Thread("load-" + t) {
+                @Override
+                public void run() {
+                    long due = firstDue;
+                    while (true) {
+                        long now = System.nanoTime();
+                        if (interval > 0) {
+                            if (due >= end) {
+                                break;
+                            }
+                            if (due > now) {
+                                sleepNanos(due - now);
+                            }
+                        } else {
+                            if (now >= end) {
+                                break;
+                            }
+                            due = now;
+                        }
+                        boolean predict = random.nextDouble() < predictRatio;
+                        String user = users[random.nextInt(users.length)];
+                        String url = predict
+                                ? baseUrl + "/predict?user=" + encode(user) + "&item=" + encode(items[random.nextInt(items.length)])
+                                : baseUrl + "/recommend?user=" + encode(user) + "&n=" + listSize;
+                        int status = get(url);
+                        long latency = System.nanoTime() - due;
+                        if (due >= measureStart) {
+                            (predict ? predictLatency : recommendLatency).record(latency);
+                            statuses.incrementAndGet(statusClass(status));
+                        }
+                        due += interval;
+                    }
+                }
+            };
+            clients[t].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        long requests = recommendLatency.count() + predictLatency.count();
+        System.out.println(String.format("%d clients, %s: %d requests in %.1f s, %.0f requests/s",
+                numThreads, rate > 0 ? String.format("rate %.0f/s", rate) : "closed loop", requests, seconds, requests / seconds));
+        System.out.println(String.format("responses: 2xx %d, 4xx %d, 503 %d, other 5xx %d, failed %d",
+                statuses.get(0), statuses.get(1), statuses.get(2), statuses.get(3), statuses.get(4)));
+        report("recommend", recommendLatency);
+        report("predict", predictLatency);
+    }
+
+    private static void report(String name, LatencyHistogram latency) {
+        if (latency.count() == 0) {
+            return;
+        }
+        System.out.println(String.format("%-9s %d requests, latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms",
+                name, latency.count(), latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+                latency.percentile(0.999) / 1e6));
+    }
+
+    private static int statusClass(int status) {
+        if (status < 0) {
+            return 4;
+        }
+        if (status == 503) {
+            return 2;
+        }
+        return status >= 500 ? 3 : status >= 400 ? 1 : 0;
+    }
+
+    /**
+     * Send a GET and read the whole response, so the connection is kept
+     * alive for the next request of the client.
+     *
+     * @return the status, or -1 if the request failed
+     */
+    private static int get(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // drain
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return -1;
+        }
+    }
+
+    private static void readIds(File ratingFile, Set<String> users, Set<String> items) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(ratingFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("[ \t,]+");
+                if (fields.length >= 2) {
+                    users.add(fields[0]);
+                    items.add(fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
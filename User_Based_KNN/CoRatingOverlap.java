@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender.cf;
+
+import net.librec.math.structure.SparseMatrix;
+
+/**
+ * Counts the number of co-rated items between pairs of users.
+ * <p>
+ * The rated item indices of every user are taken once from the rows of the
+ * train matrix, which are already sorted, so a pair of sparse users is
+ * intersected with a linear merge. Users that rated enough items to make a
+ * bitset cheaper than their index array additionally get a {@code long[]}
+ * bitset, which is either probed by the smaller user or and-ed with the other
+ * bitset and counted with {@link Long#bitCount(long)}.
+ */
+public class CoRatingOverlap {
+
+    private final int numUsers;
+    private final int numWords;
+    // sorted rated item indices of each user
+    private final int[][] ratedItems;
+    // rated item bitsets, only built for dense users
+    private final long[][] ratedBits;
+
+    /**
+     * Build the per-user item indices (and bitsets for dense users).
+     *
+     * @param trainMatrix user-item rating matrix
+     */
+    public CoRatingOverlap(SparseMatrix trainMatrix) {
+        numUsers = trainMatrix.numRows();
+        numWords = (trainMatrix.numColumns() + 63) >>> 6;
+        ratedItems = new int[numUsers][];
+        ratedBits = new long[numUsers][];
+
+        for (int userIdx = 0; userIdx < numUsers; userIdx++) {
+            int[] items = trainMatrix.row(userIdx).getIndex();
+            ratedItems[userIdx] = items;
+
+            // a bitset pays off once it has fewer words than the user has items
+            if (items.length > numWords) {
+                long[] bits = new long[numWords];
+                for (int itemIdx : items) {
+                    bits[itemIdx >>> 6] |= 1L << itemIdx;
+                }
+                ratedBits[userIdx] = bits;
+            }
+        }
+    }
+
+    /**
+     * @param userIdx user index
+     * @return the number of items rated by the given user
+     */
+    public int count(int userIdx) {
+        return ratedItems[userIdx].length;
+    }
+
+    /**
+     * Count the items rated by both users.
+     *
+     * @param userIdx  first user index
+     * @param otherIdx second user index
+     * @return the number of co-rated items
+     */
+    public int overlap(int userIdx, int otherIdx) {
+        // make sure the first user is the one with fewer ratings
+        if (ratedItems[userIdx].length > ratedItems[otherIdx].length) {
+            int tmp = userIdx;
+            userIdx = otherIdx;
+            otherIdx = tmp;
+        }
+        int[] items = ratedItems[userIdx];
+        if (items.length == 0) {
+            return 0;
+        }
+        long[] otherBits = ratedBits[otherIdx];
+        if (otherBits == null) {
+            return merge(items, ratedItems[otherIdx]);
+        }
+        long[] bits = ratedBits[userIdx];
+        if (bits == null) {
+            return probe(items, otherBits);
+        }
+        return intersect(bits, otherBits);
+    }
+
+    /**
+     * Fill the upper triangle of one row of the overlap matrix, that is
+     * {@code overlaps[otherIdx]} for every {@code otherIdx > userIdx}.
+     * The overlap is symmetric, so the lower triangle is never computed.
+     *
+     * @param userIdx  user index
+     * @param overlaps output array of length {@code numUsers}
+     */
+    public void overlapRow(int userIdx, int[] overlaps) {
+        for (int otherIdx = userIdx + 1; otherIdx < numUsers; otherIdx++) {
+            overlaps[otherIdx] = overlap(userIdx, otherIdx);
+        }
+    }
+
+    private static int merge(int[] a, int[] b) {
+        int i = 0, j = 0, overlap = 0;
+        while (i < a.length && j < b.length) {
+            int x = a[i], y = b[j];
+            if (x == y) {
+                overlap++;
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return overlap;
+    }
+
+    private static int probe(int[] items, long[] bits) {
+        int overlap = 0;
+        for (int itemIdx : items) {
+            if ((bits[itemIdx >>> 6] & (1L << itemIdx)) != 0) {
+                overlap++;
+            }
+        }
+        return overlap;
+    }
+
+    private static int intersect(long[] a, long[] b) {
+        int overlap = 0;
+        for (int w = 0; w < a.length; w++) {
+            overlap += Long.bitCount(a[w] & b[w]);
+        }
+        return overlap;
+    }
+}
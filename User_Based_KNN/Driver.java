@@ -2,7 +2,9 @@ package edu.depaul.cdm.csc577;
 import net.librec.conf.Configuration;
 import net.librec.job.RecommenderJob;
 import net.librec.math.algorithm.Randoms;
+import net.librec.recommender.RecommenderMetrics;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.util.Properties;
 
@@ -25,8 +27,17 @@ public class Driver {
         }
 
         Randoms.seed(20161205);
-        RecommenderJob job = new RecommenderJob(conf);
-        job.runJob();
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase("Driver", "job");
+        try {
+            // the job times building the data model and the similarities
+            RecommenderJob job = new TimedRecommenderJob(conf);
+            job.runJob();
+        } finally {
+            phase.stop();
+        }
+        // phase timings, epochs and predict latencies of the run
+        String metricsFile = conf.get("rec.metrics.json", conf.get("dfs.result.dir", "result") + "/metrics.json");
+        RecommenderMetrics.get().writeJson(new File(metricsFile));
         System.out.print("Finished");
     }
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender.cf;
+
+import net.librec.math.structure.SparseVector;
+import net.librec.math.structure.SymmMatrix;
+
+/**
+ * Neighbor lists of all users, sorted by similarity in descending order
+ * (ties by ascending user index) and kept as parallel {@code int[]} user
+ * indices and {@code float[]} similarities.
+ * <p>
+ * Each list is selected with {@link TopKSelector}, so with a cap only the
+ * top {@code cap} neighbors are ever sorted.
+ */
+public class NeighborIndex {
+
+    private final int[][] neighborIds;
+    private final float[][] neighborSims;
+
+    private NeighborIndex(int numUsers) {
+        neighborIds = new int[numUsers][];
+        neighborSims = new float[numUsers][];
+    }
+
+    /**
+     * Build the neighbor lists from a similarity matrix.
+     *
+     * @param similarityMatrix user similarity matrix
+     * @param numUsers         number of users
+     * @param cap              maximum number of neighbors kept per user, 0 or less keeps all
+     * @param numThreads       number of threads used to build the lists
+     * @return the neighbor index
+     */
+    public static NeighborIndex build(final SymmMatrix similarityMatrix, int numUsers, final int cap, int numThreads) {
+        final NeighborIndex index = new NeighborIndex(numUsers);
+        ParallelUserLoop.run(numUsers, numThreads, new ParallelUserLoop.Body() {
+            @Override
+            public void run(int from, int to) {
+                for (int userIdx = from; userIdx < to; userIdx++) {
+                    SparseVector similarityVector = similarityMatrix.row(userIdx);
+                    index.select(userIdx, similarityVector.getIndex(), similarityVector.getData(), cap);
+                }
+            }
+        });
+        return index;
+    }
+
+    /**
+     * @param userIdx user index
+     * @return the neighbors of the user, most similar first
+     */
+    public int[] neighbors(int userIdx) {
+        return neighborIds[userIdx];
+    }
+
+    /**
+     * @param userIdx user index
+     * @return the similarities of the user's neighbors, parallel to {@link #neighbors(int)}
+     */
+    public float[] similarities(int userIdx) {
+        return neighborSims[userIdx];
+    }
+
+    private void select(int userIdx, int[] ids, double[] sims, int cap) {
+        int size = cap > 0 ? Math.min(cap, ids.length) : ids.length;
+        int[] sortedIds = new int[size];
+        double[] sortedSims = new double[size];
+        TopKSelector.select(ids, sims, ids.length, size, sortedIds, sortedSims);
+
+        float[] neighborSim = new float[size];
+        for (int k = 0; k < size; k++) {
+            neighborSim[k] = (float) sortedSims[k];
+        }
+        neighborIds[userIdx] = sortedIds;
+        neighborSims[userIdx] = neighborSim;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender.cf;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over user indices, either on the calling thread or split into
+ * ranges of users on a {@link ForkJoinPool}. Ranges are small enough for
+ * work stealing to even out rows of different cost.
+ */
+public class ParallelUserLoop {
+
+    /**
+     * Work done for a contiguous range of users.
+     */
+    public interface Body {
+        /**
+         * @param from first user index (inclusive)
+         * @param to   last user index (exclusive)
+         */
+        void run(int from, int to);
+    }
+
+    private ParallelUserLoop() {
+    }
+
+    /**
+     * Run the body over all users.
+     *
+     * @param numUsers   number of users
+     * @param numThreads number of worker threads, 1 or less runs serially
+     * @param body       work for a range of users
+     */
+    public static void run(int numUsers, int numThreads, Body body) {
+        if (numThreads <= 1 || numUsers <= 1) {
+            body.run(0, numUsers);
+            return;
+        }
+        int grain = Math.max(1, numUsers / (numThreads * 16));
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(new RangeTask(body, 0, numUsers, grain));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private final Body body;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        RangeTask(Body body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.recommender.cf;
+
+import net.librec.math.structure.SparseMatrix;
+import net.librec.math.structure.SparseVector;
+
+/**
+ * The columns of the train matrix as primitive arrays: for every item the
+ * users who rated it, sorted by user index, and the parallel ratings.
+ * Reading them allocates nothing, unlike {@code getRowsSet} or {@code column}.
+ */
+public class RatingColumns {
+
+    private final int[][] raters;
+    private final double[][] ratings;
+
+    /**
+     * @param trainMatrix user-item rating matrix
+     */
+    public RatingColumns(SparseMatrix trainMatrix) {
+        int numItems = trainMatrix.numColumns();
+        raters = new int[numItems][];
+        ratings = new double[numItems][];
+        for (int itemIdx = 0; itemIdx < numItems; itemIdx++) {
+            SparseVector itemRatingVector = trainMatrix.column(itemIdx);
+            raters[itemIdx] = itemRatingVector.getIndex();
+            ratings[itemIdx] = itemRatingVector.getData();
+        }
+    }
+
+    /**
+     * @param itemIdx item index
+     * @return the users who rated the item, in ascending order
+     */
+    public int[] raters(int itemIdx) {
+        return raters[itemIdx];
+    }
+
+    /**
+     * @param itemIdx item index
+     * @return the ratings of the item, parallel to {@link #raters(int)}
+     */
+    public double[] ratings(int itemIdx) {
+        return ratings[itemIdx];
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2016 LibRec
+ * <p>
+ * This file is part of LibRec.
+ * LibRec is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p>
+ * LibRec is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.librec.math.structure;
+
+import java.util.Map;
+
+/**
+ * Reads the cells a {@link SymmMatrix} actually stores.
+ * <p>
+ * A symmetric matrix keeps every unordered pair in a single cell of its
+ * table, in the table row of one of the two indices. {@link SymmMatrix#row}
+ * looks up all {@code dim} columns to build a row, while the stored row of
+ * the table only holds the cells kept under that index, so walking the
+ * stored rows of all indices visits every stored pair exactly once in time
+ * proportional to the number of stored cells.
+ * <p>
+ * It lives in this package because the table of a SymmMatrix is not public.
+ */
+public final class SymmMatrixCells {
+
+    private SymmMatrixCells() {
+    }
+
+    /**
+     * Copy the cells stored in the table row of one index.
+     *
+     * @param matrix symmetric matrix
+     * @param row    row index
+     * @param cols   output column indices, at least the dimension of the matrix long
+     * @param values output values, parallel to cols
+     * @return the number of cells copied
+     */
+    public static int storedRow(SymmMatrix matrix, int row, int[] cols, double[] values) {
+        int count = 0;
+        for (Map.Entry<Integer, Double> cell : matrix.data.row(row).entrySet()) {
+            cols[count] = cell.getKey();
+            values[count] = cell.getValue();
+            count++;
+        }
+        return count;
+    }
+}
@@ -25,14 +25,14 @@ import net.librec.common.LibrecException;
 import net.librec.math.structure.DenseVector;
 import net.librec.math.structure.SparseVector;
 import net.librec.math.structure.SymmMatrix;
-import net.librec.math.structure.VectorEntry;
+import net.librec.math.structure.SymmMatrixCells;
 import net.librec.recommender.AbstractRecommender;
-import net.librec.util.Lists;
+import net.librec.recommender.LatencyHistogram;
+import net.librec.recommender.RecommenderMetrics;
 
 import java.awt.*;
 import java.util.*;
 import java.util.List;
-import java.util.Map.Entry;
 
 /**
  * UserKNNRecommender
@@ -42,14 +42,15 @@ import java.util.Map.Entry;
 @ModelData({"isRanking", "knn", "userMappingData", "itemMappingData", "userMeans", "trainMatrix", "similarityMatrix"})
 public class UserKNNRecommender extends AbstractRecommender {
 
-    // this will be used to store the signifigance weighting coefficients for
-    // each user.  in this case, there is 1508 users, so each
-    // key will be an array list of 1508 values
-    private HashMap overLapMatrix = new HashMap<Integer, ArrayList>();
     private int knn;
     private DenseVector userMeans;
     private SymmMatrix similarityMatrix;
-    private List<Map.Entry<Integer, Double>>[] userSimilarityList;
+    private RatingColumns itemRaters;
+    // built at the end of trainModel() and published through the volatile
+    // write, so predict can be called from several threads
+    private volatile NeighborIndex userNeighbors;
+    // predict latencies, only recorded with rec.metrics.latency
+    private LatencyHistogram predictLatency;
 
     /**
      * (non-Javadoc)
@@ -58,9 +59,16 @@ public class UserKNNRecommender extends AbstractRecommender {
      */
     @Override
     protected void setup() throws LibrecException {
-        super.setup();
-        knn = conf.getInt("rec.neighbors.knn.number");
-        similarityMatrix = context.getSimilarity().getSimilarityMatrix();
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "setup");
+        try {
+            super.setup();
+            knn = conf.getInt("rec.neighbors.knn.number");
+            similarityMatrix = context.getSimilarity().getSimilarityMatrix();
+            predictLatency = conf.getBoolean("rec.metrics.latency", false)
+                    ? RecommenderMetrics.get().latency(getClass().getSimpleName()) : null;
+        } finally {
+            phase.stop();
+        }
     }
 
     /**
@@ -70,63 +78,146 @@ public class UserKNNRecommender extends AbstractRecommender {
      */
     @Override
     protected void trainModel() throws LibrecException {
+        RecommenderMetrics.Phase phase = RecommenderMetrics.get().startPhase(getClass().getSimpleName(), "trainModel");
+        try {
+            // the overlap with each user is found from each users rated items
+            // and turned into a significance weighting coefficient right away.
+            // we just leverage the loop that is already creating
+            // the usermeans for each row
+            final double beta = conf.getInt("beta"); // store the beta value
 
-        // overlap hash matrix will loop through each users rated items
-        // and proceed to find the overlap with each user
-        // the results will be stored in a hashmap where the key
-        // is a user and the value is an array list in which a
-        // which the 0 index is the overlap with the first user
-        // we just leverage the loop that is already creating
-        // the usermeans for each row
-        double overLapValue; // store the number of overlapping ratings
-        double coef; // store the significance weighting coefficient
-        double beta; // store the beta value
-        List<Integer> vect1 = new ArrayList<Integer>(); // store the indexed items for user 1
-        List<Integer> vect2 = new ArrayList<Integer>(); // store the indexed items for user 2
-        beta = conf.getInt("beta");
-
-        userMeans = new DenseVector(numUsers);
-
-        for (int userIdx = 0; userIdx < numUsers; userIdx++) {
-
-            // this will store the overlap values for each user
-            List<Double> vect3 = new ArrayList<Double>();
-            SparseVector userRatingVector = trainMatrix.row(userIdx);
-            userMeans.set(userIdx, userRatingVector.getCount() > 0 ? userRatingVector.mean() : globalMean);
-            vect1 = trainMatrix.row(userIdx).getIndexList();
-
-            for (int i = 0; i < numUsers; i++){
-                    overLapValue = 0;
-                    vect2 = trainMatrix.row(i).getIndexList();
-
-                    for ( int t : vect1){
-
-                        if(vect2.contains(t)){
-                            overLapValue++;
-                        }else{
-                            continue;
-                        }
-                    }
+            userMeans = new DenseVector(numUsers);
+
+            // the overlap engine merges the sorted item indices of two users
+            // (or uses bitsets for dense users), and only the upper triangle
+            // is computed since the overlap is symmetric
+            final CoRatingOverlap coRatings = new CoRatingOverlap(trainMatrix);
 
-                    if(overLapValue >= beta) {
-                        coef = 1;
-                        vect3.add(coef);
-                    }else{
-                        coef = overLapValue/beta;
-                        vect3.add(coef);
+            // in sparse mode only the stored similarities are visited
+            final boolean sparseWeighting = conf.getBoolean("rec.knn.significance.sparse", false);
+
+            // every row only touches its own users mean and the upper triangle
+            // cells (userIdx, r >= userIdx), or in sparse mode the cells stored
+            // under userIdx, so the rows can be weighted on several threads
+            // with the same result as the serial loop
+            int numThreads = conf.getInt("rec.knn.train.threads", 1);
+            ParallelUserLoop.run(numUsers, numThreads, new ParallelUserLoop.Body() {
+                @Override
+                public void run(int from, int to) {
+                    int[] overlaps = new int[numUsers];
+                    double[] sims = new double[numUsers];
+                    for (int userIdx = from; userIdx < to; userIdx++) {
+
+                        SparseVector userRatingVector = trainMatrix.row(userIdx);
+                        userMeans.set(userIdx, userRatingVector.getCount() > 0 ? userRatingVector.mean() : globalMean);
+
+                        if (sparseWeighting) {
+                            weightStoredSimilarities(userIdx, coRatings, beta, overlaps, sims);
+                        } else {
+                            weightSimilarities(userIdx, coRatings, beta, overlaps, sims);
+                        }
                     }
                 }
+            });
 
-            overLapMatrix.put(userIdx,vect3);
+            itemRaters = new RatingColumns(trainMatrix);
 
-            // here we begin looping through the similarity matrix
-            // and finding the coefficient values to multiple the similarities
-            // by then we replace the values of the matrix with the new value
-            for (int r = 0; r < numUsers; r++){
-                    double new_sim;
-                    new_sim = similarityMatrix.get(userIdx,r) * vect3.get(r);
-                    similarityMatrix.set(userIdx,r,new_sim);
-                }
+            // build the neighbor lists eagerly, so no predict call pays for
+            // them or races another caller to build them
+            userNeighbors = null;
+            createUserSimilarityList();
+        } finally {
+            phase.stop();
+        }
+    }
+
+    /**
+     * Apply significance weighting to the upper triangle row of one user.
+     * <p>
+     * The symmetric matrix stores a single cell for (userIdx, r) and
+     * (r, userIdx), which the original full sweep scaled once from each
+     * side, so off-diagonal cells get the coefficient applied twice.
+     *
+     * @param userIdx   user index
+     * @param coRatings co-rating overlap engine
+     * @param beta      overlap at which the similarity is no longer shrunk
+     * @param overlaps  buffer for the overlaps of the row
+     * @param sims      buffer for the similarities of the row
+     */
+    private void weightSimilarities(int userIdx, CoRatingOverlap coRatings, double beta, int[] overlaps, double[] sims) {
+        coRatings.overlapRow(userIdx, overlaps);
+        overlaps[userIdx] = coRatings.count(userIdx);
+
+        // the similarity matrix is backed by a hash table, so access to it
+        // is serialized while the overlaps are computed without the lock
+        synchronized (similarityMatrix) {
+            for (int r = userIdx; r < numUsers; r++) {
+                sims[r] = similarityMatrix.get(userIdx, r);
+            }
+        }
+
+        // here we begin looping through the similarity matrix
+        // and finding the coefficient values to multiple the similarities
+        // by then we replace the values of the matrix with the new value
+        for (int r = userIdx; r < numUsers; r++) {
+            double overLapValue = overlaps[r];
+            double coef = overLapValue >= beta ? 1 : overLapValue / beta;
+
+            double new_sim;
+            new_sim = sims[r] * coef;
+            if (r != userIdx) {
+                new_sim = new_sim * coef;
+            }
+            sims[r] = new_sim;
+        }
+
+        synchronized (similarityMatrix) {
+            for (int r = userIdx; r < numUsers; r++) {
+                similarityMatrix.set(userIdx, r, sims[r]);
+            }
+        }
+    }
+
+    /**
+     * Apply significance weighting to the similarities stored under one user.
+     * <p>
+     * Every unordered pair is stored once, under one of its two users, so
+     * walking the stored cells of all users shrinks every pair exactly once,
+     * in time proportional to the stored similarities instead of all user
+     * pairs. Zero similarities are never written, which keeps the similarity
+     * matrix sparse.
+     *
+     * @param userIdx   user index
+     * @param coRatings co-rating overlap engine
+     * @param beta      overlap at which the similarity is no longer shrunk
+     * @param others    buffer for the other users of the stored cells
+     * @param sims      buffer for the similarities of the stored cells
+     */
+    private void weightStoredSimilarities(int userIdx, CoRatingOverlap coRatings, double beta, int[] others, double[] sims) {
+        int stored;
+        synchronized (similarityMatrix) {
+            stored = SymmMatrixCells.storedRow(similarityMatrix, userIdx, others, sims);
+        }
+        int count = 0;
+        for (int k = 0; k < stored; k++) {
+            int r = others[k];
+            double sim = sims[k];
+            if (sim == 0) {
+                continue;
+            }
+            double overLapValue = r == userIdx ? coRatings.count(userIdx) : coRatings.overlap(userIdx, r);
+            double coef = overLapValue >= beta ? 1 : overLapValue / beta;
+            if (coef != 1) {
+                others[count] = r;
+                sims[count] = sim * coef;
+                count++;
+            }
+        }
+
+        synchronized (similarityMatrix) {
+            for (int k = 0; k < count; k++) {
+                similarityMatrix.set(userIdx, others[k], sims[k]);
+            }
         }
     }
 
@@ -134,82 +225,82 @@ public class UserKNNRecommender extends AbstractRecommender {
      * (non-Javadoc)
      *
      * @see net.librec.recommender.AbstractRecommender#predict(int, int)
+     *
+     * Only reads the trained model, so it is safe for concurrent callers.
      */
     @Override
     public double predict(int userIdx, int itemIdx) throws LibrecException {
+        LatencyHistogram latency = predictLatency;
+        if (latency == null) {
+            return estimate(userIdx, itemIdx);
+        }
+        long start = System.nanoTime();
+        double rating = estimate(userIdx, itemIdx);
+        latency.record(System.nanoTime() - start);
+        return rating;
+    }
+
+    private double estimate(int userIdx, int itemIdx) {
+        NeighborIndex neighbors = userNeighbors;
         //create userSimilarityList if not exists
-        if (!(null != userSimilarityList && userSimilarityList.length > 0)) {
-            createUserSimilarityList();
+        if (neighbors == null) {
+            neighbors = createUserSimilarityList();
         }
-        // find a number of similar users
-        List<Map.Entry<Integer, Double>> nns = new ArrayList<>();
-        List<Map.Entry<Integer, Double>> simList = userSimilarityList[userIdx];
+        // find a number of similar users. the raters of the item are
+        // sorted by user index, so every neighbor is looked up with a
+        // binary search and its rating is read at the position found,
+        // and the sums are accumulated while walking the neighbors
+        int[] simUsers = neighbors.neighbors(userIdx);
+        float[] simValues = neighbors.similarities(userIdx);
+        int[] raters = itemRaters.raters(itemIdx);
+        double[] ratings = itemRaters.ratings(itemIdx);
 
         int count = 0;
-        Set<Integer> userSet = trainMatrix.getRowsSet(itemIdx);
-        for (Map.Entry<Integer, Double> userRatingEntry : simList) {
-            int similarUserIdx = userRatingEntry.getKey();
-            if (!userSet.contains(similarUserIdx)) {
+        double sum = 0, ws = 0;
+        for (int k = 0; k < simUsers.length && count < knn; k++) {
+            double sim = simValues[k];
+            if (!isRanking && sim <= 0) {
+                // neighbors are sorted, no positive similarity follows
+                break;
+            }
+            int similarUserIdx = simUsers[k];
+            int pos = Arrays.binarySearch(raters, similarUserIdx);
+            if (pos < 0) {
                 continue;
             }
-            double sim = userRatingEntry.getValue();
-
+            count++;
             if (isRanking) {
-                nns.add(userRatingEntry);
-                count++;
-            } else if (sim > 0) {
-                nns.add(userRatingEntry);
-                count++;
-            }
-            if (count == knn) {
-                break;
+                sum += sim;
+            } else {
+                // for rating prediction
+                sum += sim * (ratings[pos] - userMeans.get(similarUserIdx));
+                ws += Math.abs(sim);
             }
         }
-        if (nns.size() == 0) {
+        if (count == 0) {
             return isRanking ? 0 : globalMean;
         }
         if (isRanking) {
-            double sum = 0.0d;
-            for (Entry<Integer, Double> userRatingEntry : nns) {
-                sum += userRatingEntry.getValue();
-            }
             return sum;
-        } else {
-            // for rating prediction
-            double sum = 0, ws = 0;
-            for (Entry<Integer, Double> userRatingEntry : nns) {
-                int similarUserIdx = userRatingEntry.getKey();
-                double sim = userRatingEntry.getValue();
-                double rate = trainMatrix.get(similarUserIdx, itemIdx);
-                sum += sim * (rate - userMeans.get(similarUserIdx));
-                ws += Math.abs(sim);
-            }
-            return ws > 0 ? userMeans.get(userIdx) + sum / ws : globalMean;
         }
+        return ws > 0 ? userMeans.get(userIdx) + sum / ws : globalMean;
     }
 
     /**
-     * Create userSimilarityList.
+     * Create userSimilarityList, unless another thread already did.
+     *
+     * @return the neighbor lists of all users
      */
-    public void createUserSimilarityList() {
-
-        userSimilarityList = new ArrayList[numUsers];
-        // these lines were used to make sure the similarity list
-        // was being created on the new similarities, after
-        // significance weighting was applied
-        // System.out.println(similarityMatrix.get(1,0));
-        // System.out.println(similarityMatrix.get(0,1));
-
-        for (int userIndex = 0; userIndex < numUsers; ++userIndex) {
-            SparseVector similarityVector = similarityMatrix.row(userIndex);
-            userSimilarityList[userIndex] = new ArrayList<>(similarityVector.size());
-            Iterator<VectorEntry> simItr = similarityVector.iterator();
-            while (simItr.hasNext()) {
-                VectorEntry simVectorEntry = simItr.next();
-
-                userSimilarityList[userIndex].add(new AbstractMap.SimpleImmutableEntry<>(simVectorEntry.index(), simVectorEntry.get()));
-            }
-            Lists.sortList(userSimilarityList[userIndex], false);
+    public synchronized NeighborIndex createUserSimilarityList() {
+        if (userNeighbors != null) {
+            return userNeighbors;
         }
+        // neighbors are kept as primitive id/similarity arrays, and with
+        // rec.neighbors.list.cap only the best ones are selected and sorted
+        int cap = conf.getInt("rec.neighbors.list.cap", 0);
+        int numThreads = conf.getInt("rec.knn.train.threads", 1);
+        NeighborIndex neighbors = NeighborIndex.build(similarityMatrix, numUsers, cap, numThreads);
+        userNeighbors = neighbors;
+        return neighbors;
     }
 }